@@ -0,0 +1,22 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 运维接口配置，对应application.yaml中的hmdp.admin
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.admin")
+public class AdminProperties {
+
+    /**
+     * 可以调用运维接口（/voucher/admin/**、/voucher-order/admin/**）的用户id，为空时所有用户都不能调用
+     */
+    private Set<Long> userIds = new HashSet<>();
+}
@@ -0,0 +1,35 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.RedisBloomFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.stream.Collectors;
+
+@Configuration
+public class BloomFilterConfig {
+
+    /**
+     * 商铺id的布隆过滤器，启动时从tb_shop构建
+     * @return
+     */
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                            RedisMessageListenerContainer listenerContainer,
+                                            CacheProperties cacheProperties,
+                                            ShopMapper shopMapper) {
+        return new RedisBloomFilter("shop", stringRedisTemplate, listenerContainer, cacheProperties.getBloom(),
+                lastId -> shopMapper.selectList(new QueryWrapper<Shop>()
+                                .select("id")
+                                .gt("id", lastId)
+                                .orderByAsc("id")
+                                .last("limit 1000"))
+                        .stream().map(Shop::getId).collect(Collectors.toList()),
+                () -> shopMapper.selectCount(null).longValue());
+    }
+}
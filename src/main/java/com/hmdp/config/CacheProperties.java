@@ -0,0 +1,85 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 缓存相关配置，对应application.yaml中的hmdp.cache
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 默认的缓存值编解码器：hutool、jackson、kryo
+     */
+    private String codec = "hutool";
+    /**
+     * 按key前缀指定编解码器，例如 cache:shop: -> kryo，切换后旧格式的数据按未命中重新加载
+     */
+    private Map<String, String> codecs = new HashMap<>();
+    /**
+     * CacheClient的本地一级缓存配置
+     */
+    private Local local = new Local();
+    /**
+     * 防止缓存穿透的布隆过滤器配置
+     */
+    private Bloom bloom = new Bloom();
+
+    @Data
+    public static class Local {
+        /**
+         * 是否在Redis前面加一层本地缓存
+         */
+        private boolean enabled = false;
+        /**
+         * 使用本地缓存的key前缀，例如cache:shop:，为空表示所有前缀都使用
+         */
+        private Set<String> prefixes = new HashSet<>();
+        /**
+         * 每个key前缀最多缓存的对象数，超出后按W-TinyLFU淘汰
+         */
+        private long maximumSize = 10000;
+        /**
+         * 写入后的过期时间，漏掉失效广播时最多读到这么久的旧数据
+         */
+        private Duration expireAfterWrite = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 是否开启，开启后不存在的id在查询Redis和数据库之前就被拒绝
+         */
+        private boolean enabled = false;
+        /**
+         * 最少按多少个元素分配位数组，实际按数据量的growth倍分配
+         */
+        private long expectedInsertions = 1000000;
+        /**
+         * 元素数量达到容量时的误判率
+         */
+        private double fpp = 0.01;
+        /**
+         * 重建时容量为当前数据量的倍数，数据量超过容量后自动重建为更大的过滤器
+         */
+        private double growth = 2.0;
+        /**
+         * 检查数据量是否超过容量、从Redis重新加载位数组的间隔
+         */
+        private Duration checkInterval = Duration.ofMinutes(10);
+        /**
+         * 定期从数据库重建的间隔，补上写入失败等原因遗漏的数据，为0时只在超出容量或写入失败时重建
+         */
+        private Duration rebuildInterval = Duration.ofDays(1);
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 全局id生成器配置，对应application.yaml中的hmdp.id
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdWorkerProperties {
+
+    /**
+     * id生成方式，所有节点必须使用相同的方式
+     */
+    private Mode mode = Mode.REDIS;
+
+    /**
+     * 每次从Redis预占的序列号数量，大于0时开启号段模式，0表示每个id都INCR一次
+     */
+    private long leaseStep = 0;
+    /**
+     * 当前号段使用到该比例时异步预取下一个号段
+     */
+    private double prefetchRatio = 0.8;
+    /**
+     * 雪花算法workerId租约的有效期，续期一直失败时，从最后一次续期成功起超过有效期的9/10后不再生成id
+     */
+    private Duration workerLeaseTtl = Duration.ofSeconds(30);
+    /**
+     * 雪花算法workerId租约的续期间隔，应小于有效期的三分之一
+     */
+    private Duration workerHeartbeat = Duration.ofSeconds(10);
+    /**
+     * 时钟回拨超过该值时打印告警
+     */
+    private Duration maxClockBackward = Duration.ofMillis(5);
+
+    public enum Mode {
+        /**
+         * 基于Redis自增的RedisIdWorker
+         */
+        REDIS,
+        /**
+         * 进程内的雪花算法SnowflakeIdWorker
+         */
+        SNOWFLAKE
+    }
+}
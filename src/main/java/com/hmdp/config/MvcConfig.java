@@ -1,5 +1,6 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -14,6 +15,8 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private AdminProperties adminProperties;
     /**
      * 登录拦截器
      * @param registry
@@ -27,9 +30,13 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**",
                         "shop-type/**",
                         "/upload/**",
+                        "/voucher-order/queue/*/status",
                         "/blog/hot",
                         "/user/code",
                         "/user/login").order(1); // 添加order保证刷新拦截器先执行
+        // 运维接口拦截器，/voucher/**不需要登录，运维接口单独校验
+        registry.addInterceptor(new AdminInterceptor(adminProperties))
+                .addPathPatterns("/voucher/admin/**", "/voucher-order/admin/**").order(2);
         // 刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 .addPathPatterns("/**").order(0);
@@ -0,0 +1,347 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 秒杀相关配置，对应application.yaml中的hmdp.seckill
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 本地售罄标记的有效期，过期后放行一次请求到Redis重新确认，0表示一直有效
+     */
+    private Duration soldOutTtl = Duration.ofSeconds(60);
+    /**
+     * 本地缓存的秒杀券元数据（开始、结束时间等）的刷新间隔
+     */
+    private Duration metaRefresh = Duration.ofSeconds(30);
+    /**
+     * 订单消费配置
+     */
+    private Order order = new Order();
+    /**
+     * pending-list恢复配置
+     */
+    private Recovery recovery = new Recovery();
+    /**
+     * 库存配置
+     */
+    private Stock stock = new Stock();
+    /**
+     * 秒杀券预热和清理配置
+     */
+    private Lifecycle lifecycle = new Lifecycle();
+    /**
+     * 秒杀接口的准入控制配置
+     */
+    private Admission admission = new Admission();
+    /**
+     * 排队模式配置
+     */
+    private WaitingRoom waitingRoom = new WaitingRoom();
+    /**
+     * 未支付订单超时取消配置
+     */
+    private Expire expire = new Expire();
+    /**
+     * 订单本地日志配置
+     */
+    private Journal journal = new Journal();
+    /**
+     * 订单消息积压监控、裁剪和背压配置
+     */
+    private Backlog backlog = new Backlog();
+
+    @Data
+    public static class Order {
+        /**
+         * 每次XREADGROUP最多读取的消息数，大于1时开启批量消费模式
+         */
+        private int batchSize = 1;
+        /**
+         * 批量模式下凑批的最长等待时间
+         */
+        private Duration batchLinger = Duration.ofMillis(50);
+        /**
+         * 每个实例启动的消费者线程数
+         */
+        private int consumers = 1;
+        /**
+         * stream.orders按优惠券id哈希拆分的分区数，为1时不分区
+         */
+        private int partitions = 1;
+        /**
+         * 是否由lua脚本在下单成功时生成订单id，省去单独的INCR
+         */
+        private boolean idInScript = false;
+        /**
+         * 是否依赖tb_voucher_order(user_id, voucher_id)唯一索引幂等落库，不再加分布式锁和查询订单
+         */
+        private boolean idempotentInsert = false;
+    }
+
+    @Data
+    public static class Recovery {
+        /**
+         * 是否开启后台恢复
+         */
+        private boolean enabled = true;
+        /**
+         * 扫描pending-list的间隔
+         */
+        private Duration interval = Duration.ofSeconds(30);
+        /**
+         * 消息空闲超过该时间才会被认领，应明显大于正常处理一批消息的耗时
+         */
+        private Duration minIdle = Duration.ofSeconds(60);
+        /**
+         * 每个分区每次最多认领的消息数
+         */
+        private int batchSize = 100;
+        /**
+         * 投递次数达到该值的消息转入死信队列
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 死信队列
+         */
+        private String deadLetterStream = "stream.orders.dlq";
+        /**
+         * 死信队列中消息的保留时间，由积压监控删除更早的消息。
+         * 重放订单日志时用死信队列跳过已经失败的订单，应不小于journal.retention
+         */
+        private Duration deadLetterRetain = Duration.ofDays(7);
+    }
+
+    @Data
+    public static class Stock {
+        /**
+         * 新增秒杀券时库存拆分的分段数，大于1时开启分段库存，分段会分散到集群的不同slot
+         */
+        private int segments = 1;
+        /**
+         * 新增秒杀券时下单用户分片bitmap的分片位数，每个分片 2^n 位；0表示用set保存下单用户。
+         * 用户id连续时bitmap每个用户只占1位，比set节省一个数量级以上的内存；用户id稀疏时分片可以避免分配大片的空bitmap。
+         * 最大为23（每个分片1MB），超过时按23处理
+         */
+        private int buyerShardBits = 0;
+        /**
+         * 是否以Redis库存为准：落库时不再逐单扣减tb_seckill_voucher的库存，而是定期把Redis库存写回数据库
+         */
+        private boolean writeBehind = false;
+        /**
+         * 分段库存下单后超过该时间仍未发送订单消息的，视为节点已宕机，由恢复任务补发消息或释放一人一单名额
+         */
+        private Duration segmentPendingTimeout = Duration.ofSeconds(30);
+        /**
+         * 写回库存的间隔
+         */
+        private Duration flushInterval = Duration.ofSeconds(5);
+        /**
+         * 对账的间隔，对账只记录日志，不自动修复，0表示不对账
+         */
+        private Duration reconcileInterval = Duration.ofSeconds(60);
+    }
+
+    @Data
+    public static class Lifecycle {
+        /**
+         * 是否开启定时预热和清理
+         */
+        private boolean enabled = true;
+        /**
+         * 扫描秒杀券的间隔
+         */
+        private Duration interval = Duration.ofSeconds(60);
+        /**
+         * 秒杀开始前多久预热
+         */
+        private Duration warmUpAhead = Duration.ofMinutes(5);
+        /**
+         * 预热时空跑lua脚本的次数，用于触发JIT编译
+         */
+        private int warmUpRounds = 200;
+        /**
+         * 预热的并发线程数，应接近Redis和数据库连接池的大小，才能把连接都建立起来
+         */
+        private int warmUpThreads = 8;
+        /**
+         * 秒杀结束后多久清理Redis中的数据，留出时间让消费者处理完剩余的订单消息
+         */
+        private Duration archiveDelay = Duration.ofMinutes(10);
+        /**
+         * 清理时向前查找已结束秒杀券的时间范围，覆盖服务停机期间结束的秒杀券
+         */
+        private Duration archiveLookback = Duration.ofDays(7);
+        /**
+         * 归档统计信息的保存时间，应大于archiveLookback
+         */
+        private Duration archiveTtl = Duration.ofDays(30);
+        /**
+         * 归档开始后超过该时间还没有完成的，视为归档节点已宕机，由其它节点重新归档
+         */
+        private Duration archiveTimeout = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class Admission {
+        /**
+         * 是否开启准入控制
+         */
+        private boolean enabled = true;
+        /**
+         * 每件剩余库存每秒放行的请求数，令牌生成速率 = 剩余库存 * 该值
+         */
+        private double stockMultiplier = 2.0;
+        /**
+         * 最低的令牌生成速率，每秒
+         */
+        private double minRate = 50;
+        /**
+         * 桶容量可以容纳多少秒生成的令牌，决定允许的突发量
+         */
+        private double burstSeconds = 1.0;
+        /**
+         * 本地令牌桶速率占全局速率的比例，多节点部署时可以按节点数调小
+         */
+        private double localRatio = 1.0;
+        /**
+         * 每次从Redis全局令牌桶领取的令牌数，为1时每个请求都访问Redis
+         */
+        private int globalBatch = 10;
+        /**
+         * 按剩余库存重新计算令牌生成速率的间隔
+         */
+        private Duration stockRefresh = Duration.ofSeconds(1);
+        /**
+         * 返回给客户端的最长重试等待时间
+         */
+        private Duration maxRetryAfter = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class WaitingRoom {
+        /**
+         * 开启排队模式的优惠券id，用户先排队领号，按批次放行后才能秒杀
+         */
+        private Set<Long> vouchers = new HashSet<>();
+        /**
+         * 每批放行的人数，应与订单处理能力匹配
+         */
+        private int batchSize = 200;
+        /**
+         * 放行的间隔
+         */
+        private Duration batchInterval = Duration.ofSeconds(1);
+        /**
+         * 本地缓存放行进度的时间，查询排队位置时不需要每次访问Redis
+         */
+        private Duration cursorRefresh = Duration.ofMillis(500);
+    }
+
+    @Data
+    public static class Expire {
+        /**
+         * 是否开启未支付订单超时取消
+         */
+        private boolean enabled = true;
+        /**
+         * 支付时限，下单后超过该时间未支付的订单被取消，库存回补
+         */
+        private Duration payTimeout = Duration.ofMinutes(15);
+        /**
+         * 处理线程数
+         */
+        private int workers = 1;
+        /**
+         * 每次取出的到期订单数
+         */
+        private int batchSize = 100;
+        /**
+         * 没有到期订单时的轮询间隔
+         */
+        private Duration pollInterval = Duration.ofSeconds(1);
+        /**
+         * 取出的订单在该时间内没有处理完成会被重新取出
+         */
+        private Duration lease = Duration.ofSeconds(60);
+        /**
+         * 已回补订单id的保存时间，期间重新取出的订单不会重复回补库存；秒杀清理时不删除，应明显大于lease
+         */
+        private Duration restoredTtl = Duration.ofDays(1);
+    }
+
+    @Data
+    public static class Journal {
+        /**
+         * 是否把下单成功的订单写入本地日志
+         */
+        private boolean enabled = false;
+        /**
+         * 日志目录
+         */
+        private String dir = "journal";
+        /**
+         * 单个日志文件的大小，写满后切换到新文件
+         */
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+        /**
+         * 组提交的间隔，每个间隔fsync一次
+         */
+        private Duration groupCommitInterval = Duration.ofMillis(5);
+        /**
+         * 请求线程是否等待记录刷盘后再返回
+         */
+        private boolean sync = true;
+        /**
+         * 等待刷盘的最长时间，超时后不再等待
+         */
+        private Duration syncTimeout = Duration.ofMillis(100);
+        /**
+         * 旧日志文件的保留时间，切换文件时删除过期的文件
+         */
+        private Duration retention = Duration.ofDays(7);
+    }
+
+    @Data
+    public static class Backlog {
+        /**
+         * 采样消费者组积压和裁剪stream的间隔，0表示关闭
+         */
+        private Duration monitorInterval = Duration.ofSeconds(5);
+        /**
+         * 裁剪方式：MINID按已确认消息的位置裁剪（Redis 6.2+，低版本自动改为MAXLEN），MAXLEN只在消息全部确认后按长度裁剪
+         */
+        private TrimStrategy trimStrategy = TrimStrategy.MINID;
+        /**
+         * MINID模式下已确认的消息至少保留的时间，便于排查问题
+         */
+        private Duration trimRetain = Duration.ofMinutes(10);
+        /**
+         * MAXLEN模式下保留的消息数
+         */
+        private long maxLen = 100000;
+        /**
+         * 积压（未投递 + 未确认）超过该值时准入控制开始按比例降速，0表示不降速
+         */
+        private long lagThreshold = 20000;
+        /**
+         * 降速后的最低速率比例
+         */
+        private double minThrottle = 0.1;
+    }
+
+    public enum TrimStrategy {
+        MINID, MAXLEN
+    }
+}
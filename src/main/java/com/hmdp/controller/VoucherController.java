@@ -2,6 +2,7 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.StockReconcileDTO;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
@@ -54,4 +55,18 @@ public class VoucherController {
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
        return voucherService.queryVoucherOfShop(shopId);
     }
+
+    /**
+     * 秒杀券库存对账：比较Redis库存、下单用户数和数据库库存、订单数，只有管理员可以调用
+     * @param voucherId 优惠券id
+     * @param fix 是否修复偏差，以Redis库存为准时写回数据库，否则在秒杀结束、订单全部落库后按数据库推算Redis库存
+     * @return 对账结果
+     */
+    @PostMapping("admin/seckill/reconcile/{id}")
+    public Result reconcileSeckillStock(
+            @PathVariable("id") Long voucherId,
+            @RequestParam(value = "fix", defaultValue = "false") Boolean fix) {
+        StockReconcileDTO report = voucherService.reconcileSeckillStock(voucherId, fix);
+        return report == null ? Result.fail("秒杀券不存在！") : Result.ok(report);
+    }
 }
@@ -3,12 +3,15 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillStreamMonitor;
+import com.hmdp.utils.SeckillWaitingRoom;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 /**
  * <p>
@@ -24,6 +27,12 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private SeckillStreamMonitor seckillStreamMonitor;
 
     /**
      * 优惠券秒杀下单
@@ -34,4 +43,78 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.sekillVocher(voucherId);
     }
+
+    /**
+     * 排队模式下领取排队号，重复领取返回原来的号
+     * @param voucherId 优惠券id
+     * @return 排队号和当前位置
+     */
+    @PostMapping("queue/{id}")
+    public Result enqueueSeckill(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.enqueueSeckill(voucherId);
+    }
+
+    /**
+     * 查询排队位置，只和本地缓存的放行进度比较，不访问Redis，结果允许客户端和CDN缓存1秒
+     * @param voucherId 优惠券id
+     * @param ticket 排队号
+     * @return 当前位置、是否已放行
+     */
+    @GetMapping("queue/{id}/status")
+    public Result queryQueueStatus(
+            @PathVariable("id") Long voucherId,
+            @RequestParam("ticket") Long ticket,
+            HttpServletResponse response) {
+        response.setHeader("Cache-Control", "public, max-age=1");
+        return Result.ok(seckillWaitingRoom.status(voucherId, ticket));
+    }
+
+    /**
+     * 查询秒杀订单的处理结果
+     * @param orderId 秒杀下单返回的订单id
+     * @param timeout 结果未出来时最多等待的毫秒数，0表示立即返回
+     * @return 订单处理结果
+     */
+    @GetMapping("result/{id}")
+    public DeferredResult<Result> queryOrderResult(
+            @PathVariable("id") Long orderId,
+            @RequestParam(value = "timeout", defaultValue = "0") Long timeout) {
+        return voucherOrderService.queryOrderResult(orderId, timeout);
+    }
+
+    /**
+     * 查询秒杀准入控制的统计：当前速率、放行数、被拒绝数（本节点），只有管理员可以调用
+     * @param voucherId 优惠券id
+     * @return 准入统计
+     */
+    @GetMapping("admin/admission/{id}")
+    public Result queryAdmissionStats(@PathVariable("id") Long voucherId) {
+        return Result.ok(seckillAdmission.stats(voucherId));
+    }
+
+    /**
+     * 查询订单消息队列的积压：未投递数、未确认数、最早未确认消息的等待时间、准入降速比例，只有管理员可以调用
+     * @return 每个分区最近一次的采样
+     */
+    @GetMapping("admin/stream/backlog")
+    public Result queryStreamBacklog() {
+        return Result.ok(seckillStreamMonitor.stats());
+    }
+
+    /**
+     * 重放本节点的订单日志，Redis主从切换丢失订单消息后使用，只有管理员可以调用
+     * @param target stream：重新投递到消息队列，db：直接写入数据库
+     * @return 重放的订单数、跳过的订单数和库存冲突的订单
+     */
+    @PostMapping("admin/journal/replay")
+    public Result replayJournal(@RequestParam(value = "target", defaultValue = "stream") String target) {
+        if (!"stream".equals(target) && !"db".equals(target)) {
+            return Result.fail("target只能是stream或db");
+        }
+        try {
+            return Result.ok(voucherOrderService.replayJournal("stream".equals(target)));
+        } catch (IOException e) {
+            throw new RuntimeException("读取订单日志失败", e);
+        }
+    }
 }
@@ -0,0 +1,28 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class AdmissionStatsDTO {
+    private Long voucherId;
+    /**
+     * 当前的令牌生成速率，每秒
+     */
+    private Double rate;
+    /**
+     * 订单消息积压导致的降速比例，1表示不降速
+     */
+    private Double throttle;
+    /**
+     * 放行的请求数
+     */
+    private Long admitted;
+    /**
+     * 被本地限流拒绝的请求数
+     */
+    private Long shedLocal;
+    /**
+     * 被全局限流拒绝的请求数
+     */
+    private Long shedGlobal;
+}
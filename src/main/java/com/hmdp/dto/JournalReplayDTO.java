@@ -0,0 +1,26 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+public class JournalReplayDTO {
+    /**
+     * 日志中的订单数
+     */
+    private Integer journalOrders = 0;
+    /**
+     * 重放的订单数
+     */
+    private Integer replayed = 0;
+    /**
+     * 已经被消费者拒绝（重复下单、库存不足、转入死信队列）而跳过的订单数
+     */
+    private Integer rejected = 0;
+    /**
+     * 库存已经被其它用户抢走、无法重放的订单id
+     */
+    private List<Long> conflicts = new ArrayList<>();
+}
@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderResultDTO {
+    private Long orderId;
+    /**
+     * 0：处理中，1：下单成功，2：重复下单，3：库存不足，4：下单失败
+     */
+    private Integer status;
+    private String msg;
+}
@@ -0,0 +1,24 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class QueueTicketDTO {
+    private Long voucherId;
+    /**
+     * 排队号
+     */
+    private Long ticket;
+    /**
+     * 前面还有多少人，0表示已放行
+     */
+    private Long position;
+    /**
+     * 是否已放行，放行后可以秒杀
+     */
+    private Boolean admitted;
+    /**
+     * 是否已售罄
+     */
+    private Boolean soldOut;
+}
@@ -0,0 +1,40 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class StockReconcileDTO {
+    private Long voucherId;
+    /**
+     * Redis中的剩余库存，已经清理时为空
+     */
+    private Long redisStock;
+    /**
+     * tb_seckill_voucher中的库存
+     */
+    private Integer dbStock;
+    /**
+     * Redis中的下单用户数
+     */
+    private Long buyers;
+    /**
+     * tb_voucher_order中的订单数，包括已取消的（仍占用下单用户名额）
+     */
+    private Long orders;
+    /**
+     * 已下单但还没落库的订单数
+     */
+    private Long pending;
+    /**
+     * 库存偏差，0表示一致
+     */
+    private Long drift;
+    /**
+     * 是否已修复
+     */
+    private Boolean fixed;
+    /**
+     * 要求修复但没有修复的原因
+     */
+    private String reason;
+}
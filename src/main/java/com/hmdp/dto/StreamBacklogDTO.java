@@ -0,0 +1,36 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class StreamBacklogDTO {
+    private String stream;
+    /**
+     * stream中的消息数
+     */
+    private Long length;
+    /**
+     * 还没有投递给消费者组的消息数
+     */
+    private Long lag;
+    /**
+     * 已投递未确认的消息数
+     */
+    private Long pending;
+    /**
+     * 最早的未确认消息距今的毫秒数
+     */
+    private Long oldestPendingAge;
+    /**
+     * 上次裁剪删除的消息数
+     */
+    private Long trimmed;
+    /**
+     * 准入控制的速率比例，1表示不降速
+     */
+    private Double throttle;
+    /**
+     * 采样时间
+     */
+    private Long sampleTime;
+}
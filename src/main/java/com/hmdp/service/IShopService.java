@@ -16,5 +16,9 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result queryShopByType(Integer typeId, Integer current);
+
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 }
@@ -1,8 +1,13 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.JournalReplayDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.io.IOException;
+import java.util.List;
 
 /**
  * <p>
@@ -15,5 +20,20 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result sekillVocher(Long voucherId);
+
+    Result enqueueSeckill(Long voucherId);
+
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    List<VoucherOrder> cancelUnpaidOrders(List<VoucherOrder> voucherOrders);
+
+    DeferredResult<Result> queryOrderResult(Long orderId, Long timeout);
+
+    void warmUpSeckill(Long voucherId);
+
+    void evictSeckillVoucher(Long voucherId);
+
+    JournalReplayDTO replayJournal(boolean toStream) throws IOException;
 }
@@ -1,7 +1,10 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.StockReconcileDTO;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
+import com.hmdp.utils.SeckillVoucherMeta;
 import com.baomidou.mybatisplus.extension.service.IService;
 
 /**
@@ -17,4 +20,14 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    SeckillVoucherMeta saveSeckillVoucherMeta(SeckillVoucher seckillVoucher, int segments, int buyerShardBits);
+
+    SeckillVoucherMeta preloadSeckillVoucher(SeckillVoucher seckillVoucher);
+
+    boolean archiveSeckillVoucher(Long voucherId);
+
+    boolean flushSeckillStock(Long voucherId);
+
+    StockReconcileDTO reconcileSeckillStock(Long voucherId, boolean fix);
 }
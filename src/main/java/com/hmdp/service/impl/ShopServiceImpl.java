@@ -10,19 +10,26 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -41,6 +48,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+
+    @PostConstruct
+    private void init() {
+        // 商铺查询先经过布隆过滤器，拦截不存在的id
+        cacheClient.registerFilter(CACHE_SHOP_KEY, shopBloomFilter);
+    }
 
     /**
      * 根据id查询商铺信息
@@ -71,6 +86,30 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /**
+     * 根据商铺类型分页查询
+     * 数据库只查询当前页的id，商铺数据从缓存批量读取，一页只需要一次MGET
+     * @param typeId
+     * @param current
+     * @return
+     */
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current) {
+        // 1.分页查询id
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        // 2.批量查询缓存，未命中的一次查询数据库
+        List<Shop> shops = cacheClient
+                .queryBatchWithLogicalExpire(CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId,
+                        20L, TimeUnit.SECONDS);
+        // 3.去掉查询期间被删除的商铺
+        shops.removeIf(Objects::isNull);
+        return Result.ok(shops);
+    }
+
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     private Shop queryWithLogicalExpire(Long id) {
         String key = CACHE_SHOP_KEY + id;
@@ -194,12 +233,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         Shop shop = getById(id);
         // 模拟延时
         Thread.sleep(200);
-        // 2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3.写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2.封装逻辑过期时间，写入Redis，同时让各节点的本地缓存失效
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     /**
@@ -227,6 +262,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return
      */
     public Shop queryWithPassThrough(Long id) {
+        // 0.布隆过滤器判断商铺一定不存在，直接返回
+        if (!shopBloomFilter.mightContain(id)) {
+            return null;
+        }
         String key = CACHE_SHOP_KEY + id;
         // 1.从Redis中查询缓存
         String shopJson = stringRedisTemplate.opsForValue().get(key);
@@ -255,6 +294,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }
 
+    /**
+     * 新增商铺，写入数据库后加入布隆过滤器
+     * @param shop
+     * @return
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1.写入数据库
+        save(shop);
+        // 2.加入布隆过滤器，之后的查询才不会被拦截；写入失败时过滤器安排重建，不影响新增结果
+        shopBloomFilter.add(shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 更新商铺信息
      * @param shop
@@ -271,8 +324,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         // 2.更新数据库
         updateById(shop);
-        // 3.删除缓存中地商铺信息
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 3.删除缓存中地商铺信息，同时删除各节点的本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 }
@@ -1,38 +1,82 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.IdWorkerProperties;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.JournalReplayDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillOrderExpirer;
+import com.hmdp.utils.SeckillOrderJournal;
+import com.hmdp.utils.SeckillOrderResults;
+import com.hmdp.utils.SeckillSegments;
+import com.hmdp.utils.SeckillStockSync;
+import com.hmdp.utils.SeckillStreams;
+import com.hmdp.utils.SeckillVoucherMeta;
+import com.hmdp.utils.SeckillWaitingRoom;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
 
 /**
  * <p>
@@ -48,11 +92,31 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
+    private IVoucherService voucherService;
+    @Resource
     private RedisIdWorker redisIdWorker;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private IdWorkerProperties idWorkerProperties;
+    @Resource
+    private SeckillOrderResults seckillOrderResults;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private SeckillStockSync seckillStockSync;
+    @Resource
+    private SeckillOrderExpirer seckillOrderExpirer;
+    @Resource
+    private SeckillOrderJournal seckillOrderJournal;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
@@ -60,7 +124,42 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
     }
+    private static final DefaultRedisScript<String> SECKILL_ID_SCRIPT;
+    static {
+        SECKILL_ID_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_ID_SCRIPT.setLocation(new ClassPathResource("seckill_id.lua"));
+        SECKILL_ID_SCRIPT.setResultType(String.class);
+    }
+    private static final DefaultRedisScript<Long> SEGMENT_SECKILL_SCRIPT;
+    static {
+        SEGMENT_SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill_segment.lua"));
+        SEGMENT_SECKILL_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> REPLAY_SCRIPT;
+    static {
+        REPLAY_SCRIPT = new DefaultRedisScript<>();
+        REPLAY_SCRIPT.setLocation(new ClassPathResource("seckill_replay.lua"));
+        REPLAY_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> SEGMENT_TAKE_SCRIPT;
+    static {
+        SEGMENT_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_segment_take.lua"));
+        SEGMENT_TAKE_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> SEGMENT_RELEASE_SCRIPT;
+    static {
+        SEGMENT_RELEASE_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_segment_release.lua"));
+        SEGMENT_RELEASE_SCRIPT.setResultType(Long.class);
+    }
+    // 本地缓存的秒杀券元数据，不在秒杀时间内的请求不需要任何IO就能拒绝
+    private final Map<Long, CachedMeta> seckillMetas = new ConcurrentHashMap<>();
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    // 注入自身的代理对象，消费线程在没有任何请求之前也能通过代理调用事务方法
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
     /**
      * 优惠券秒杀下单优化
@@ -70,22 +169,74 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result sekillVocher(Long voucherId) {
+        // 本地已标记售罄，直接返回
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 判断是否在秒杀时间内
+        SeckillVoucherMeta meta = seckillVoucherMetaOf(voucherId);
+        if (meta == null) {
+            return Result.fail("秒杀券不存在！");
+        }
+        long now = System.currentTimeMillis();
+        if (now < meta.getBeginTime()) {
+            return Result.fail("秒杀还未开始！");
+        }
+        if (now > meta.getEndTime()) {
+            return Result.fail("秒杀已经结束！");
+        }
+        // 排队模式，只有已经放行的用户才能秒杀
+        if (seckillWaitingRoom.isEnabled(voucherId)) {
+            long position = seckillWaitingRoom.checkAdmitted(voucherId, UserHolder.getUser().getId());
+            if (position < 0) {
+                return Result.fail("请先排队！");
+            }
+            if (position > 0) {
+                return Result.fail("还未轮到您，前面还有" + position + "人", position);
+            }
+        }
+        // 准入控制，超出令牌桶速率的请求直接拒绝，返回建议的重试等待毫秒数
+        long retryAfter = seckillAdmission.tryAdmit(voucherId, meta.getSegments());
+        if (retryAfter > 0) {
+            return Result.fail("当前抢购人数过多，请稍后重试", retryAfter);
+        }
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
-        // 获取订单id
-        long orderId = redisIdWorker.nextId("order");
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
-        int r = result.intValue();
-        // 2.判断结果是否为0
-        if (r != 0) {
-            // 2.1.不为0，代表库存不足或者重复下单
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        String streamKey = SeckillStreams.streamKey(seckillProperties.getOrder().getPartitions(), voucherId);
+        // 1.下单，结果为1代表库存不足，为2代表重复下单，为4代表秒杀未开始，为5代表秒杀已结束，其它为订单id
+        //   lua脚本按Redis的时间再次校验秒杀时间，所有节点在开始和结束的边界上判断一致
+        long r;
+        if (meta.getSegments() > 1) {
+            // 1.1.分段库存
+            r = seckillBySegment(voucherId, userId, meta, streamKey);
+        } else if (seckillProperties.getOrder().isIdInScript()
+                && idWorkerProperties.getMode() == IdWorkerProperties.Mode.REDIS) {
+            // 1.2.由lua脚本生成订单id，雪花算法模式下本地生成id更快，不使用该方式
+            r = seckillWithScriptId(voucherId, userId, meta, streamKey);
+        } else {
+            // 1.3.获取订单id，执行lua脚本
+            long orderId = redisIdWorker.nextId("order");
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), streamKey,
+                    meta.getBeginTime().toString(), meta.getEndTime().toString(),
+                    String.valueOf(meta.getBuyerShardBits())
+            );
+            r = result == 0 ? orderId : result;
+        }
+        // 2.判断是否下单成功
+        if (r <= 5) {
+            // 2.1.库存不足、重复下单或者不在秒杀时间内
+            if (r == 1) {
+                // 标记售罄并广播给其它节点
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+            return Result.fail(r == 1 ? "库存不足" : r == 2 ? "不能重复下单" : r == 4 ? "秒杀还未开始！" : "秒杀已经结束！");
         }
+        // 3.写入本地订单日志，Redis丢失消息时可以恢复
+        seckillOrderJournal.append(r, userId, voucherId);
+        long orderId = r;
 
         // 基于阻塞队列实现秒杀异步下单
         /*// 2.2.创建VoucherOrder对象
@@ -96,63 +247,589 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 2.3.放入阻塞队列
         orderTasks.add(voucherOrder);*/
 
-        // 3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        // 4.返回订单id
+        // 3.返回订单id
         return Result.ok(orderId);
     }
 
-    // 异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Override
+    public Result enqueueSeckill(Long voucherId) {
+        // 1.判断是否开启了排队模式
+        if (!seckillWaitingRoom.isEnabled(voucherId)) {
+            return Result.fail("该秒杀券不需要排队！");
+        }
+        // 2.判断秒杀券是否存在、是否已经结束，秒杀开始前也可以排队
+        SeckillVoucherMeta meta = seckillVoucherMetaOf(voucherId);
+        if (meta == null) {
+            return Result.fail("秒杀券不存在！");
+        }
+        if (System.currentTimeMillis() > meta.getEndTime()) {
+            return Result.fail("秒杀已经结束！");
+        }
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 3.领号
+        return Result.ok(seckillWaitingRoom.enqueue(voucherId, UserHolder.getUser().getId()));
+    }
+
+    @Override
+    public JournalReplayDTO replayJournal(boolean toStream) throws IOException {
+        JournalReplayDTO report = new JournalReplayDTO();
+        // 1.读取本节点的订单日志
+        List<VoucherOrder> journalOrders = seckillOrderJournal.readAll();
+        report.setJournalOrders(journalOrders.size());
+        // 2.死信队列中的订单，消费者多次处理失败，不再重放
+        Set<Long> deadIds = deadLetterOrderIds();
+        for (int from = 0; from < journalOrders.size(); from += 500) {
+            List<VoucherOrder> chunk = journalOrders.subList(from, Math.min(from + 500, journalOrders.size()));
+            // 3.过滤掉已经落库的订单
+            Set<Long> savedIds = query().select("id")
+                    .in("id", chunk.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                    .list()
+                    .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            List<VoucherOrder> lostOrders = chunk.stream()
+                    .filter(voucherOrder -> !savedIds.contains(voucherOrder.getId()))
+                    .collect(Collectors.toList());
+            if (lostOrders.isEmpty()) {
+                continue;
+            }
+            // 4.过滤掉消费者已经拒绝的订单（重复下单、库存不足、转入死信队列），这些订单本来就不会落库
+            List<Integer> statuses = seckillOrderResults.statuses(
+                    lostOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+            List<VoucherOrder> replayOrders = new ArrayList<>(lostOrders.size());
+            for (int i = 0; i < lostOrders.size(); i++) {
+                int status = statuses.get(i);
+                if (deadIds.contains(lostOrders.get(i).getId())
+                        || status == SeckillOrderResults.DUPLICATE
+                        || status == SeckillOrderResults.SOLD_OUT
+                        || status == SeckillOrderResults.FAILED) {
+                    report.setRejected(report.getRejected() + 1);
+                    continue;
+                }
+                replayOrders.add(lostOrders.get(i));
+            }
+            // 5.恢复Redis中的下单用户和库存，Redis没有丢数据时不会重复扣减，库存已经被抢走的不能重放
+            List<VoucherOrder> conflictOrders = new ArrayList<>();
+            for (VoucherOrder voucherOrder : replayOrders) {
+                if (!restoreReplayedOrder(voucherOrder)) {
+                    conflictOrders.add(voucherOrder);
+                }
+            }
+            if (!conflictOrders.isEmpty()) {
+                replayOrders.removeAll(conflictOrders);
+                conflictOrders.forEach(voucherOrder -> report.getConflicts().add(voucherOrder.getId()));
+                // 下单时已经返回了成功，记录为库存不足，用户查询结果时能看到，再次重放时也会跳过
+                seckillOrderResults.record(conflictOrders, SeckillOrderResults.SOLD_OUT);
+            }
+            if (replayOrders.isEmpty()) {
+                continue;
+            }
+            // 6.重新投递到消息队列，或者直接落库，两种方式都是幂等的
+            if (toStream) {
+                int partitions = seckillProperties.getOrder().getPartitions();
+                for (VoucherOrder voucherOrder : replayOrders) {
+                    addOrderMessage(SeckillStreams.streamKey(partitions, voucherOrder.getVoucherId()),
+                            voucherOrder.getUserId(), voucherOrder.getVoucherId(), voucherOrder.getId());
+                }
+            } else {
+                proxy.createVoucherOrderBatch(replayOrders);
+            }
+            report.setReplayed(report.getReplayed() + replayOrders.size());
+        }
+        log.warn("订单日志重放完成：" + report);
+        return report;
+    }
+
+    /**
+     * 死信队列中所有订单的id
+     */
+    private Set<Long> deadLetterOrderIds() {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(seckillProperties.getRecovery().getDeadLetterStream(), Range.unbounded());
+        if (records == null) {
+            return Collections.emptySet();
+        }
+        return records.stream()
+                .map(record -> record.getValue().get("id"))
+                .filter(Objects::nonNull)
+                .map(id -> Long.valueOf(id.toString()))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * 重放前恢复订单在Redis中的下单用户和库存
+     * @return 库存已经被其它用户抢走时返回false，订单不能重放
+     */
+    private boolean restoreReplayedOrder(VoucherOrder voucherOrder) {
+        Long voucherId = voucherOrder.getVoucherId();
+        SeckillVoucherMeta meta = seckillVoucherMetaOf(voucherId);
+        int segments = meta == null ? 1 : meta.getSegments();
+        int buyerShardBits = meta == null ? 0 : meta.getBuyerShardBits();
+        List<String> keys;
+        if (segments > 1) {
+            // 分段库存只在用户所属分段上恢复，该分段库存不足时按冲突处理
+            int home = SeckillSegments.homeSegment(voucherOrder.getUserId(), segments);
+            keys = Arrays.asList(SeckillSegments.stockKey(voucherId, home), SeckillSegments.orderKey(voucherId, home));
+        } else {
+            keys = Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId);
+        }
+        Long r = stringRedisTemplate.execute(REPLAY_SCRIPT, keys,
+                voucherOrder.getUserId().toString(), String.valueOf(buyerShardBits));
+        if (r == null || r == 2) {
+            log.warn("订单日志重放冲突，库存已被抢完：" + voucherOrder.getId());
+            return false;
+        }
+        if (r == 3 && seckillProperties.getStock().isWriteBehind()) {
+            // 秒杀已经清理，以Redis库存为准时落库不会再扣减数据库库存，这里直接扣减，库存不足时按冲突处理
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - 1")
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", 1)
+                    .update();
+            if (!success) {
+                log.warn("订单日志重放冲突，数据库库存不足：" + voucherOrder.getId());
+            }
+            return success;
+        }
+        // 秒杀已经清理并且逐单扣减数据库库存时，落库时会校验数据库库存
+        return true;
+    }
+
+    /**
+     * 获取秒杀券元数据，优先使用本地缓存，过期后从Redis刷新，Redis中没有时从数据库加载并写回Redis
+     * @return 秒杀券不存在时返回null
+     */
+    private SeckillVoucherMeta seckillVoucherMetaOf(Long voucherId) {
+        CachedMeta cached = seckillMetas.get(voucherId);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.loadTime < seckillProperties.getMetaRefresh().toMillis()) {
+            return cached.meta;
+        }
+        // 1.从Redis加载
+        SeckillVoucherMeta meta = null;
+        Map<Object, Object> metaMap = stringRedisTemplate.opsForHash().entries(SECKILL_VOUCHER_KEY + voucherId);
+        if (!metaMap.isEmpty()) {
+            meta = BeanUtil.fillBeanWithMap(metaMap, new SeckillVoucherMeta(), false);
+        } else {
+            // 2.Redis中没有，说明是旧的秒杀券或者已经清理，从数据库加载，旧的秒杀券没有分段库存，下单用户保存在set中
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            if (seckillVoucher != null) {
+                meta = SeckillVoucherMeta.of(seckillVoucher, 1, 0);
+                // 已经结束的秒杀券只缓存在本地，不再写回Redis
+                if (meta.getEndTime() >= now) {
+                    voucherService.saveSeckillVoucherMeta(seckillVoucher, 1, 0);
+                }
+            }
+        }
+        // 3.不存在的秒杀券也缓存下来，避免反复查询数据库
+        seckillMetas.put(voucherId, new CachedMeta(meta, now));
+        return meta;
+    }
+
+    @Override
+    public void warmUpSeckill(Long voucherId) {
+        SeckillProperties.Lifecycle config = seckillProperties.getLifecycle();
+        // 1.重新加载本地的秒杀券元数据
+        seckillMetas.remove(voucherId);
+        SeckillVoucherMeta meta = seckillVoucherMetaOf(voucherId);
+        if (meta == null) {
+            return;
+        }
+        // 2.加载lua脚本，秒杀开始后直接EVALSHA，不会因为NOSCRIPT再发送一次脚本内容
+        List<DefaultRedisScript<?>> scripts = Arrays.asList(
+                SECKILL_SCRIPT, SECKILL_ID_SCRIPT, SEGMENT_SECKILL_SCRIPT, SEGMENT_TAKE_SCRIPT, SEGMENT_RELEASE_SCRIPT);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (DefaultRedisScript<?> script : scripts) {
+                connection.scriptingCommands().scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        // 3.多线程空跑秒杀脚本：开始时间设为最大值，脚本校验时间后直接返回4，不会修改任何数据，
+        //   既触发了下单路径上代码的JIT编译，也把Redis和数据库连接池中的连接建立起来
+        String streamKey = SeckillStreams.streamKey(seckillProperties.getOrder().getPartitions(), voucherId);
+        String notStarted = String.valueOf(Long.MAX_VALUE);
+        String ended = meta.getEndTime().toString();
+        int threads = Math.max(1, config.getWarmUpThreads());
+        int rounds = Math.max(1, config.getWarmUpRounds() / threads);
+        ExecutorService warmUpExecutor = Executors.newFixedThreadPool(threads, ThreadUtil.newNamedThreadFactory("seckill-warm-up-", true));
+        try {
+            for (int t = 0; t < threads; t++) {
+                long userId = -1 - t;
+                warmUpExecutor.submit(() -> {
+                    for (int i = 0; i < rounds; i++) {
+                        if (meta.getSegments() > 1) {
+                            int home = SeckillSegments.homeSegment(userId, meta.getSegments());
+                            stringRedisTemplate.execute(SEGMENT_SECKILL_SCRIPT,
+                                    Arrays.asList(SeckillSegments.stockKey(voucherId, home), SeckillSegments.orderKey(voucherId, home),
+                                            SeckillSegments.pendingKey(voucherId, home)),
+                                    String.valueOf(userId), notStarted, ended, "0", "0");
+                        } else if (seckillProperties.getOrder().isIdInScript()
+                                && idWorkerProperties.getMode() == IdWorkerProperties.Mode.REDIS) {
+                            LocalDateTime now = LocalDateTime.now();
+                            stringRedisTemplate.execute(SECKILL_ID_SCRIPT, Collections.emptyList(),
+                                    voucherId.toString(), String.valueOf(userId), String.valueOf(redisIdWorker.highBits(now)),
+                                    streamKey, redisIdWorker.sequenceKey("order", now), notStarted, ended);
+                        } else {
+                            stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                                    voucherId.toString(), String.valueOf(userId), "0", streamKey, notStarted, ended);
+                        }
+                    }
+                    // 消费者落库时要查询订单、扣减库存，也预热数据库连接
+                    query().eq("voucher_id", voucherId).eq("user_id", userId).count();
+                });
+            }
+        } finally {
+            warmUpExecutor.shutdown();
+        }
+        try {
+            if (!warmUpExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("秒杀券" + voucherId + "预热超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void evictSeckillVoucher(Long voucherId) {
+        seckillMetas.remove(voucherId);
+        soldOutRegistry.forget(voucherId);
+        seckillAdmission.forget(voucherId);
+        seckillWaitingRoom.forget(voucherId);
+    }
+
+    private static class CachedMeta {
+        private final SeckillVoucherMeta meta;
+        private final long loadTime;
+
+        private CachedMeta(SeckillVoucherMeta meta, long loadTime) {
+            this.meta = meta;
+            this.loadTime = loadTime;
+        }
+    }
+
+    /**
+     * 由lua脚本在下单成功时生成订单id，只需要一次Redis交互，失败的请求也不会消耗序列号
+     * @return 1：库存不足，2：重复下单，4：秒杀未开始，5：秒杀已结束，其它：订单id
+     */
+    private long seckillWithScriptId(Long voucherId, Long userId, SeckillVoucherMeta meta, String streamKey) {
+        // id的时间戳部分和序列号key在本地计算，序列号在脚本中自增
+        LocalDateTime now = LocalDateTime.now();
+        String result = stringRedisTemplate.execute(
+                SECKILL_ID_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(), userId.toString(),
+                String.valueOf(redisIdWorker.highBits(now)), streamKey, redisIdWorker.sequenceKey("order", now),
+                meta.getBeginTime().toString(), meta.getEndTime().toString(), String.valueOf(meta.getBuyerShardBits())
+        );
+        return Long.parseLong(result);
+    }
+
+    /**
+     * 分段库存秒杀
+     * 一人一单只在用户所属的分段上判断，所属分段售罄后依次从其它分段扣减库存
+     * 分段的key分布在不同slot，订单消息由Java端发送：脚本在所属分段记录未发送消息的订单，发送后删除，
+     * 发送失败时回补库存、释放名额，节点在发送前宕机时由恢复任务处理
+     * @return 1：库存不足，2：重复下单，4：秒杀未开始，5：秒杀已结束，其它：订单id
+     */
+    private long seckillBySegment(Long voucherId, Long userId, SeckillVoucherMeta meta, String streamKey) {
+        int segments = meta.getSegments();
+        int home = SeckillSegments.homeSegment(userId, segments);
+        String homeStockKey = SeckillSegments.stockKey(voucherId, home);
+        String homeOrderKey = SeckillSegments.orderKey(voucherId, home);
+        String pendingKey = SeckillSegments.pendingKey(voucherId, home);
+        // 1.先生成订单id，生成失败时还没有占用库存和名额
+        long orderId = redisIdWorker.nextId("order");
+        // 2.在所属分段上判断一人一单并扣减库存
+        Long result = stringRedisTemplate.execute(
+                SEGMENT_SECKILL_SCRIPT,
+                Arrays.asList(homeStockKey, homeOrderKey, pendingKey),
+                userId.toString(), meta.getBeginTime().toString(), meta.getEndTime().toString(),
+                String.valueOf(meta.getBuyerShardBits()), String.valueOf(orderId)
+        );
+        long r = result;
+        String takenStockKey = homeStockKey;
+        if (r == 3) {
+            // 3.所属分段已售罄（已占用一人一单名额），依次尝试其它分段
+            r = 1;
+            for (int i = 1; i < segments && r != 0; i++) {
+                takenStockKey = SeckillSegments.stockKey(voucherId, (home + i) % segments);
+                r = stringRedisTemplate.execute(SEGMENT_TAKE_SCRIPT, Collections.singletonList(takenStockKey));
+            }
+            if (r != 0) {
+                // 3.1.全部售罄，释放占用的名额
+                releaseSegmentBuyer(voucherId, home, userId, meta.getBuyerShardBits(), orderId);
+                return 1;
+            }
+            // 3.2.记录已经扣减了库存，宕机后恢复任务补发消息
+            stringRedisTemplate.opsForHash().put(pendingKey, String.valueOf(orderId),
+                    userId + ":1:" + System.currentTimeMillis());
+        }
+        if (r != 0) {
+            return r;
+        }
+        // 4.发送消息到队列中
+        try {
+            addOrderMessage(streamKey, userId, voucherId, orderId);
+        } catch (RuntimeException e) {
+            // 4.1.发送失败，释放名额并回补扣减的库存
+            if (releaseSegmentBuyer(voucherId, home, userId, meta.getBuyerShardBits(), orderId)) {
+                stringRedisTemplate.opsForValue().increment(takenStockKey);
+            }
+            throw e;
+        }
+        // 5.消息已发送，删除未发送记录
+        stringRedisTemplate.opsForHash().delete(pendingKey, String.valueOf(orderId));
+        return orderId;
+    }
+
+    /**
+     * 释放分段库存下单占用的一人一单名额，同时删除未发送记录
+     * @return 是否释放，已经被其它线程处理过时返回false
+     */
+    private boolean releaseSegmentBuyer(Long voucherId, int home, Long userId, int buyerShardBits, long orderId) {
+        Long released = stringRedisTemplate.execute(SEGMENT_RELEASE_SCRIPT,
+                Arrays.asList(SeckillSegments.orderKey(voucherId, home), SeckillSegments.pendingKey(voucherId, home)),
+                userId.toString(), String.valueOf(buyerShardBits), String.valueOf(orderId));
+        return released != null && released == 1;
+    }
+
+    private void addOrderMessage(String streamKey, Long userId, Long voucherId, long orderId) {
+        Map<String, String> values = new HashMap<>();
+        values.put("userId", userId.toString());
+        values.put("voucherId", voucherId.toString());
+        values.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(streamKey, values);
+    }
+
+    /**
+     * 恢复分段库存中超时未发送消息的订单，下单节点在发送消息前宕机时会留下这些记录
+     * 已扣减库存的补发消息（落库是幂等的），还没扣减库存的释放一人一单名额
+     */
+    private void recoverSegmentPendingOrders() {
+        try {
+            long now = System.currentTimeMillis();
+            long timeout = seckillProperties.getStock().getSegmentPendingTimeout().toMillis();
+            int partitions = seckillProperties.getOrder().getPartitions();
+            // 1.进行中的秒杀券，包括刚结束还没清理的
+            LocalDateTime today = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .select("voucher_id")
+                    .le("begin_time", today)
+                    .gt("end_time", today.minus(seckillProperties.getLifecycle().getArchiveDelay()))
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                Long voucherId = voucher.getVoucherId();
+                SeckillVoucherMeta meta = seckillVoucherMetaOf(voucherId);
+                if (meta == null || meta.getSegments() <= 1) {
+                    continue;
+                }
+                // 2.扫描每个分段的未发送记录
+                for (int segment = 0; segment < meta.getSegments(); segment++) {
+                    String pendingKey = SeckillSegments.pendingKey(voucherId, segment);
+                    Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(pendingKey);
+                    for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+                        // value为 用户id:是否已扣减库存:时间戳
+                        String[] parts = entry.getValue().toString().split(":");
+                        if (now - Long.parseLong(parts[2]) < timeout) {
+                            continue;
+                        }
+                        long orderId = Long.parseLong(entry.getKey().toString());
+                        Long userId = Long.valueOf(parts[0]);
+                        if ("1".equals(parts[1])) {
+                            // 3.已扣减库存，补发消息，消息已经发送过时重复落库是幂等的
+                            addOrderMessage(SeckillStreams.streamKey(partitions, voucherId), userId, voucherId, orderId);
+                            stringRedisTemplate.opsForHash().delete(pendingKey, entry.getKey());
+                        } else {
+                            // 4.还没扣减库存，释放名额
+                            releaseSegmentBuyer(voucherId, segment, userId, meta.getBuyerShardBits(), orderId);
+                        }
+                        log.warn("恢复分段库存未发送消息的订单：" + orderId + "，已扣减库存：" + parts[1]);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("恢复分段库存未发送消息的订单异常", e);
+        }
+    }
+
+    // 异步处理线程池，每个线程是消费者组中的一个消费者
+    private ExecutorService seckillOrderExecutor;
+    // pending-list恢复任务
+    private ScheduledExecutorService pendingRecoveryExecutor;
     // 在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        SeckillProperties.Order config = seckillProperties.getOrder();
+        List<String> streamKeys = SeckillStreams.streamKeys(config.getPartitions());
+        // 1.创建消费者组 XGROUP CREATE stream.orders g1 0 MKSTREAM
+        for (String streamKey : streamKeys) {
+            createGroupIfAbsent(streamKey);
+        }
+        // 2.启动消费者，消费者名称由主机名、进程号和序号组成，保证不同实例之间不重复
+        int consumers = Math.max(1, config.getConsumers());
+        String consumerPrefix = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid() + "-c";
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumers, ThreadUtil.newNamedThreadFactory("seckill-order-", true));
+        // 3.分配分区：消费者数小于分区数时一个消费者读多个分区，否则多个消费者共享同一个分区
+        int slots = Math.min(consumers, streamKeys.size());
+        for (int i = 0; i < consumers; i++) {
+            List<String> assigned = new ArrayList<>();
+            for (int p = 0; p < streamKeys.size(); p++) {
+                if (p % slots == i % slots) {
+                    assigned.add(streamKeys.get(p));
+                }
+            }
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + i, assigned));
+        }
+        // 4.启动pending-list恢复任务，认领所有消费者（包括已宕机实例）中长时间未确认的消息
+        SeckillProperties.Recovery recovery = seckillProperties.getRecovery();
+        if (recovery.isEnabled()) {
+            pendingRecoveryExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadUtil.newNamedThreadFactory("seckill-order-recovery-", true));
+            long interval = recovery.getInterval().toMillis();
+            pendingRecoveryExecutor.scheduleWithFixedDelay(
+                    new PendingOrderRecoveryHandler(consumerPrefix + "recovery", streamKeys),
+                    interval, interval, TimeUnit.MILLISECONDS);
+            // 分段库存下单后节点宕机，没有发送的订单消息
+            pendingRecoveryExecutor.scheduleWithFixedDelay(
+                    this::recoverSegmentPendingOrders, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
+
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+        if (pendingRecoveryExecutor != null) {
+            pendingRecoveryExecutor.shutdownNow();
+        }
+    }
+
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            // BUSYGROUP，消费者组已经存在
+            log.debug("消费者组已存在：" + streamKey);
+        }
+    }
+
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        private final String consumerName;
+        private final StreamOffset<String>[] newOffsets;
+        private final StreamOffset<String>[] pendingOffsets;
+
+        @SuppressWarnings("unchecked")
+        VoucherOrderHandler(String consumerName, List<String> streamKeys) {
+            this.consumerName = consumerName;
+            this.newOffsets = streamKeys.stream()
+                    .map(key -> StreamOffset.create(key, ReadOffset.lastConsumed()))
+                    .toArray(StreamOffset[]::new);
+            this.pendingOffsets = streamKeys.stream()
+                    .map(key -> StreamOffset.create(key, ReadOffset.from("0")))
+                    .toArray(StreamOffset[]::new);
+        }
+
         @Override
         public void run() {
-            while (true){
+            while (!Thread.currentThread().isInterrupted()){
                 try {
+                    // 开启了批量消费模式
+                    if (seckillProperties.getOrder().getBatchSize() > 1) {
+                        handleVoucherOrderBatch();
+                        continue;
+                    }
                     /*// 1.获取队列中的订单信息
                     VoucherOrder voucherOrder = orderTasks.take();
                     // 2.创建订单
                     handleVoucherOrder(voucherOrder);*/
                     // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
+                    List<MapRecord<String, Object, Object>> list = readVoucherOrders(1, Duration.ofSeconds(2));
                     // 2.判断消息获取是否成功
-                    if(list == null || list.isEmpty()){
+                    if(list.isEmpty()){
                         // 2.1.获取失败，没有消息，继续下一次循环
                         continue;
                     }
-                    // 3.解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4.获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    // 5.ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    // 3.解析消息中的订单信息（读取多个分区时每个分区最多返回一条）
+                    for (MapRecord<String, Object, Object> record : list) {
+                        Map<Object, Object> values = record.getValue();
+                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                        // 4.获取成功，可以下单
+                        handleVoucherOrder(voucherOrder);
+                        // 5.ACK确认 SACK stream.orders g1 id
+                        stringRedisTemplate.opsForStream().acknowledge(record.getStream(), SECKILL_ORDER_GROUP, record.getId());
+                    }
                 } catch (Exception e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
                     log.error("处理订单异常",e);
                     handlePendingList();
                 }
             }
         }
 
+        /**
+         * 批量消费：一次读取多条消息，聚合扣减库存、批量插入订单后整批ACK
+         */
+        private void handleVoucherOrderBatch() {
+            SeckillProperties.Order config = seckillProperties.getOrder();
+            int batchSize = config.getBatchSize();
+            // 1.获取一批订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+            List<MapRecord<String, Object, Object>> records = readVoucherOrders(batchSize, Duration.ofSeconds(2));
+            if (records.isEmpty()) {
+                return;
+            }
+            // 2.没有凑满一批，在linger时间内继续读取
+            long deadline = System.currentTimeMillis() + config.getBatchLinger().toMillis();
+            while (records.size() < batchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                // 注意：BLOCK 0代表永久阻塞，剩余时间不足1ms时直接结束
+                if (remaining <= 0) {
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> more =
+                        readVoucherOrders(batchSize - records.size(), Duration.ofMillis(remaining));
+                if (more.isEmpty()) {
+                    break;
+                }
+                records.addAll(more);
+            }
+            // 3.解析消息中的订单信息
+            List<VoucherOrder> voucherOrders = records.stream()
+                    .map(record -> BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true))
+                    .collect(Collectors.toList());
+            // 4.批量创建订单，每批最多batchSize条（分区数大于batchSize时每个分区至少读取1条，总数会超过batchSize）
+            for (int from = 0; from < records.size(); from += batchSize) {
+                int to = Math.min(records.size(), from + batchSize);
+                proxy.createVoucherOrderBatch(voucherOrders.subList(from, to));
+                // 5.按分区整批ACK确认 XACK stream.orders g1 id1 id2 ...，后面的批次失败时留在pending-list中
+                Map<String, List<RecordId>> idsOfStream = records.subList(from, to).stream().collect(Collectors.groupingBy(
+                        MapRecord::getStream, Collectors.mapping(MapRecord::getId, Collectors.toList())));
+                idsOfStream.forEach((streamKey, ids) -> stringRedisTemplate.opsForStream()
+                        .acknowledge(streamKey, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+            }
+        }
+
+        private List<MapRecord<String, Object, Object>> readVoucherOrders(int count, Duration block) {
+            // COUNT作用于每个分区，按分区数平分，保证一次读取的总数不超过count
+            int countPerStream = Math.max(1, count / newOffsets.length);
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                    StreamReadOptions.empty().count(countPerStream).block(block),
+                    newOffsets
+            );
+            return list == null ? new ArrayList<>() : new ArrayList<>(list);
+        }
+
         private void handlePendingList() {
-            while (true){
+            while (!Thread.currentThread().isInterrupted()){
                 try {
                     // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
                             StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            pendingOffsets
                     );
                     // 2.判断订单信息是否为空
                     if (list == null || list.isEmpty()) {
@@ -164,32 +841,34 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     Map<Object, Object> value = record.getValue();
                     VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
                     // 3.创建订单
-                    createVoucherOrder(voucherOrder);
+                    proxy.createVoucherOrder(voucherOrder);
                     // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    stringRedisTemplate.opsForStream().acknowledge(record.getStream(), SECKILL_ORDER_GROUP, record.getId());
                 } catch (Exception e) {
+                    // 仍然失败的消息留在pending-list中，由PendingOrderRecoveryHandler重试或转入死信队列
                     log.error("处理pendding订单异常", e);
-                    try{
-                        Thread.sleep(50);
-                    }catch(InterruptedException ex){
-                        throw new RuntimeException(ex);
-                    }
+                    break;
                 }
             }
         }
 
         private void handleVoucherOrder(VoucherOrder voucherOrder) {
+            // 依赖唯一索引保证一人一单，不需要加锁
+            if (seckillProperties.getOrder().isIdempotentInsert()) {
+                proxy.createVoucherOrder(voucherOrder);
+                return;
+            }
             // 1.获取用户id
             Long userId = voucherOrder.getUserId();
-            // 2.创建锁对象
-            RLock redisLock = redissonClient.getLock("lock:order:" + userId);
+            // 2.创建锁对象，多个消费者并发处理时同一用户的不同秒杀券互不影响
+            RLock redisLock = redissonClient.getLock("lock:order:" + userId + ":" + voucherOrder.getVoucherId());
             // 3.尝试获取锁
             boolean isLock = redisLock.tryLock();
             // 4.判断是否获取锁成功
             if(!isLock){
-                // 获取锁失败，直接返回错误信息
-                log.error("不允许重复下单！");
-                return;
+                // 获取锁失败，同一订单正在被其它消费者处理，抛出异常不ACK，消息留在pending-list中重试
+                // 不记录处理结果，订单还没有落库，重试后才能确定结果
+                throw new IllegalStateException("订单正在处理中：" + voucherOrder.getId());
             }
             try {
                 //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
@@ -201,6 +880,125 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }
 
+    /**
+     * 扫描消费者组的pending-list，认领空闲过久的消息重新处理，多次投递仍失败的消息转入死信队列
+     */
+    private class PendingOrderRecoveryHandler implements Runnable {
+        private final String consumerName;
+        private final List<String> streamKeys;
+
+        PendingOrderRecoveryHandler(String consumerName, List<String> streamKeys) {
+            this.consumerName = consumerName;
+            this.streamKeys = streamKeys;
+        }
+
+        @Override
+        public void run() {
+            for (String streamKey : streamKeys) {
+                try {
+                    recover(streamKey);
+                } catch (Exception e) {
+                    log.error("恢复pending订单异常：" + streamKey, e);
+                }
+            }
+        }
+
+        private void recover(String streamKey) {
+            SeckillProperties.Recovery config = seckillProperties.getRecovery();
+            // 1.查询pending-list XPENDING stream.orders g1 - + count
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                    .pending(streamKey, SECKILL_ORDER_GROUP, Range.unbounded(), config.getBatchSize());
+            if (pendingMessages == null || pendingMessages.isEmpty()) {
+                return;
+            }
+            // 2.筛选空闲时间足够长的消息，投递次数过多的转入死信队列
+            List<RecordId> claimIds = new ArrayList<>();
+            List<PendingMessage> deadMessages = new ArrayList<>();
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(config.getMinIdle()) < 0) {
+                    continue;
+                }
+                if (pendingMessage.getTotalDeliveryCount() >= config.getMaxDeliveries()) {
+                    deadMessages.add(pendingMessage);
+                } else {
+                    claimIds.add(pendingMessage.getId());
+                }
+            }
+            for (PendingMessage deadMessage : deadMessages) {
+                moveToDeadLetter(streamKey, deadMessage);
+            }
+            if (claimIds.isEmpty()) {
+                return;
+            }
+            // 3.认领消息 XCLAIM stream.orders g1 recovery minIdle id1 id2 ...
+            //   其它实例同时认领时，只有一方能满足minIdle条件
+            List<StringRecord> records = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                    ((StringRedisConnection) connection).xClaim(streamKey, SECKILL_ORDER_GROUP, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdle(config.getMinIdle()).ids(claimIds.toArray(new RecordId[0]))));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            // 4.批量重新处理，createVoucherOrderBatch会过滤已经落库的订单，重复处理是安全的
+            List<VoucherOrder> voucherOrders = records.stream()
+                    .map(record -> BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true))
+                    .collect(Collectors.toList());
+            try {
+                proxy.createVoucherOrderBatch(voucherOrders);
+                stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP,
+                        records.stream().map(StringRecord::getId).toArray(RecordId[]::new));
+                log.warn("恢复pending订单" + records.size() + "条：" + streamKey);
+                return;
+            } catch (Exception e) {
+                log.error("批量恢复pending订单失败，逐条处理：" + streamKey, e);
+            }
+            // 5.整批失败时逐条处理，避免一条毒消息拖住整批
+            for (int i = 0; i < records.size(); i++) {
+                try {
+                    proxy.createVoucherOrder(voucherOrders.get(i));
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, records.get(i).getId());
+                } catch (Exception e) {
+                    log.error("恢复pending订单失败：" + records.get(i).getId(), e);
+                }
+            }
+        }
+
+        private void moveToDeadLetter(String streamKey, PendingMessage pendingMessage) {
+            String deadLetterStream = seckillProperties.getRecovery().getDeadLetterStream();
+            // 1.读取原始消息，消息可能已经被删除
+            List<MapRecord<String, Object, Object>> origin = stringRedisTemplate.opsForStream()
+                    .range(streamKey, Range.closed(pendingMessage.getIdAsString(), pendingMessage.getIdAsString()));
+            // 2.写入死信队列 XADD stream.orders.dlq * ...
+            Map<String, String> values = new HashMap<>();
+            if (origin != null && !origin.isEmpty()) {
+                origin.get(0).getValue().forEach((k, v) -> values.put(k.toString(), v.toString()));
+            }
+            values.put("originStream", streamKey);
+            values.put("originId", pendingMessage.getIdAsString());
+            values.put("consumer", pendingMessage.getConsumerName());
+            values.put("deliveries", String.valueOf(pendingMessage.getTotalDeliveryCount()));
+            stringRedisTemplate.opsForStream().add(deadLetterStream, values);
+            if (values.containsKey("id")) {
+                seckillOrderResults.record(Collections.singletonList(
+                        BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true)), SeckillOrderResults.FAILED);
+            }
+            // 3.从pending-list中移除
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, pendingMessage.getId());
+            log.error("订单消息投递" + pendingMessage.getTotalDeliveryCount() + "次仍失败，转入死信队列：" + pendingMessage.getIdAsString());
+        }
+    }
+
+    /**
+     * 查询秒杀订单的异步处理结果，支持长轮询
+     * @param orderId 订单id
+     * @param timeout 结果未出来时最多等待的毫秒数
+     * @return
+     */
+    @Override
+    public DeferredResult<Result> queryOrderResult(Long orderId, Long timeout) {
+        Long userId = UserHolder.getUser().getId();
+        return seckillOrderResults.await(orderId, userId, timeout);
+    }
+
     /**
      * 创建订单
      * @param voucherOrder
@@ -209,27 +1007,237 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Override
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
+        if (seckillProperties.getOrder().isIdempotentInsert()) {
+            createVoucherOrderIdempotent(voucherOrder);
+            return;
+        }
         Long userId = voucherOrder.getUserId();
         // 5.1.查询订单
         Integer count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
         // 5.3.判断是否存在
         if (count > 0) {
-            // 用户已经购买过了
+            // 用户已经购买过了，消息重复投递时已经存在的就是这一单
             log.error("用户已经购买过了！");
+            seckillOrderResults.recordAfterCommit(Collections.singletonList(voucherOrder),
+                    getById(voucherOrder.getId()) != null ? SeckillOrderResults.SUCCESS : SeckillOrderResults.DUPLICATE);
             return;
         }
         // 6.扣减库存
-        boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1") // set stock = stock - 1
-                .eq("voucher_id", voucherOrder.getVoucherId())
-                .gt("stock", 0) // where id = ? and stock > 0
-                .update();
+        boolean success = deductStock(voucherOrder.getVoucherId(), 1);
         if (!success) {
             // 库存不足
             log.error("库存不足！");
+            seckillOrderResults.recordAfterCommit(Collections.singletonList(voucherOrder), SeckillOrderResults.SOLD_OUT);
             return;
         }
         save(voucherOrder);
+        seckillOrderResults.recordAfterCommit(Collections.singletonList(voucherOrder), SeckillOrderResults.SUCCESS);
+        // 未支付的订单到期后自动取消
+        seckillOrderExpirer.scheduleAfterCommit(Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 取消未支付的订单，回补数据库库存
+     * @param voucherOrders 到期的订单
+     * @return 已取消的订单，包括之前已经取消过的，由调用方幂等地回补Redis库存
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<VoucherOrder> voucherOrders) {
+        Set<Long> ids = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1.锁定仍未支付的订单，防止与支付并发 select ... where id in (...) and status = 1 for update
+        List<VoucherOrder> unpaidOrders = query()
+                .select("id", "user_id", "voucher_id")
+                .in("id", ids)
+                .eq("status", 1)
+                .last("for update")
+                .list();
+        if (!unpaidOrders.isEmpty()) {
+            // 2.批量取消 update tb_voucher_order set status = 4 where id in (...)
+            update().set("status", 4)
+                    .in("id", unpaidOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                    .update();
+            // 3.按优惠券聚合回补数据库库存，以Redis库存为准时由写回任务同步，秒杀已经清理的由调用方回补
+            if (!seckillProperties.getStock().isWriteBehind()) {
+                Map<Long, Long> counts = unpaidOrders.stream()
+                        .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+                counts.forEach((voucherId, k) -> seckillVoucherService.update()
+                        .setSql("stock = stock + " + k)
+                        .eq("voucher_id", voucherId)
+                        .update());
+            }
+        }
+        // 4.查询已取消的订单，上次取消后Redis还没回补就宕机的订单也会返回
+        return query()
+                .select("id", "user_id", "voucher_id")
+                .in("id", ids)
+                .eq("status", 4)
+                .list();
+    }
+
+    /**
+     * 扣减数据库库存 set stock = stock - k where voucher_id = ? and stock >= k
+     * 以Redis库存为准时不再扣减，只标记该优惠券需要写回库存，避免每一单都争抢同一行的行锁
+     * @return 库存是否充足
+     */
+    private boolean deductStock(Long voucherId, int k) {
+        if (seckillProperties.getStock().isWriteBehind()) {
+            seckillStockSync.markDirty(voucherId);
+            return true;
+        }
+        return seckillVoucherService.update()
+                .setSql("stock = stock - " + k)
+                .eq("voucher_id", voucherId)
+                .ge("stock", k)
+                .update();
+    }
+
+    /**
+     * 依赖唯一索引幂等创建订单：先INSERT IGNORE，确实插入了才扣减库存
+     * 需要在调用方的事务中执行
+     * @param voucherOrder
+     */
+    private void createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        // 1.插入订单，重复下单或者消息重复投递时影响行数为0
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            seckillOrderResults.recordAfterCommit(Collections.singletonList(voucherOrder),
+                    getById(voucherOrder.getId()) != null ? SeckillOrderResults.SUCCESS : SeckillOrderResults.DUPLICATE);
+            return;
+        }
+        // 2.扣减库存
+        boolean success = deductStock(voucherOrder.getVoucherId(), 1);
+        if (!success) {
+            // 库存不足，回滚刚插入的订单
+            log.error("库存不足！");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            // 事务会回滚，直接记录结果
+            seckillOrderResults.record(Collections.singletonList(voucherOrder), SeckillOrderResults.SOLD_OUT);
+            return;
+        }
+        seckillOrderResults.recordAfterCommit(Collections.singletonList(voucherOrder), SeckillOrderResults.SUCCESS);
+        // 未支付的订单到期后自动取消
+        seckillOrderExpirer.scheduleAfterCommit(Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 依赖唯一索引幂等批量创建订单：按优惠券批量INSERT IGNORE，按实际插入的行数扣减库存
+     * @param voucherOrders
+     */
+    private void createVoucherOrderBatchIdempotent(List<VoucherOrder> voucherOrders) {
+        // 1.按订单id去重（同一条消息可能被重复读取），再按优惠券分组
+        Map<Long, VoucherOrder> orderMap = new LinkedHashMap<>();
+        voucherOrders.forEach(voucherOrder -> orderMap.putIfAbsent(voucherOrder.getId(), voucherOrder));
+        if (orderMap.isEmpty()) {
+            return;
+        }
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            // 2.批量插入，重复的被忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(entry.getValue());
+            if (inserted == 0) {
+                continue;
+            }
+            // 3.按实际插入的行数扣减库存 set stock = stock - k where voucher_id = ? and stock >= k
+            boolean success = deductStock(entry.getKey(), inserted);
+            if (!success) {
+                // Redis已经控制了库存，正常不会发生，整批回滚后由pending-list逐条处理
+                throw new IllegalStateException("库存不足，批量下单回滚：" + entry.getKey());
+            }
+        }
+        // 4.订单id存在的是成功的订单（包括之前已经插入的），不存在的是重复下单被忽略的
+        Set<Long> savedIds = query().select("id").in("id", orderMap.keySet()).list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        Map<Boolean, List<VoucherOrder>> saved = orderMap.values().stream()
+                .collect(Collectors.partitioningBy(voucherOrder -> savedIds.contains(voucherOrder.getId())));
+        seckillOrderResults.recordAfterCommit(saved.get(true), SeckillOrderResults.SUCCESS);
+        seckillOrderExpirer.scheduleAfterCommit(saved.get(true));
+        seckillOrderResults.recordAfterCommit(saved.get(false), SeckillOrderResults.DUPLICATE);
+    }
+
+    /**
+     * 批量创建订单：批内去重，一次查询过滤已存在订单，按优惠券聚合扣减库存，JDBC批量插入
+     * @param voucherOrders
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        if (seckillProperties.getOrder().isIdempotentInsert()) {
+            createVoucherOrderBatchIdempotent(voucherOrders);
+            return;
+        }
+        // 1.批内去重，同一用户同一张券只保留一单
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>();
+        List<VoucherOrder> duplicateOrders = new ArrayList<>();
+        List<VoucherOrder> soldOutOrders = new ArrayList<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder exist = orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            if (exist != null && !exist.getId().equals(voucherOrder.getId())) {
+                duplicateOrders.add(voucherOrder);
+            }
+        }
+        if (orderMap.isEmpty()) {
+            return;
+        }
+        // 2.一次查询过滤掉已经购买过的用户（消息重复投递时会出现）
+        Set<Long> userIds = orderMap.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = orderMap.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existOrders = query()
+                .select("id", "user_id", "voucher_id")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        List<VoucherOrder> savedOrders = new ArrayList<>();
+        for (VoucherOrder existOrder : existOrders) {
+            VoucherOrder voucherOrder = orderMap.remove(existOrder.getUserId() + ":" + existOrder.getVoucherId());
+            if (voucherOrder == null) {
+                continue;
+            }
+            if (existOrder.getId().equals(voucherOrder.getId())) {
+                // 消息重复投递，这一单已经创建过了
+                savedOrders.add(voucherOrder);
+            } else {
+                log.error("用户已经购买过了！");
+                duplicateOrders.add(voucherOrder);
+            }
+        }
+        // 3.按优惠券聚合扣减库存 set stock = stock - k where voucher_id = ? and stock >= k
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> saveOrders = new ArrayList<>(orderMap.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            boolean success = deductStock(entry.getKey(), entry.getValue().size());
+            if (success) {
+                saveOrders.addAll(entry.getValue());
+                continue;
+            }
+            // 3.1.库存不够整体扣减，退化为逐单扣减
+            boolean soldOut = false;
+            for (VoucherOrder voucherOrder : entry.getValue()) {
+                if (!soldOut) {
+                    soldOut = !deductStock(entry.getKey(), 1);
+                }
+                if (soldOut) {
+                    log.error("库存不足！");
+                    soldOutOrders.add(voucherOrder);
+                    continue;
+                }
+                saveOrders.add(voucherOrder);
+            }
+        }
+        // 4.JDBC批量插入订单
+        if (!saveOrders.isEmpty()) {
+            saveBatch(saveOrders, saveOrders.size());
+        }
+        // 5.事务提交后记录处理结果
+        savedOrders.addAll(saveOrders);
+        seckillOrderResults.recordAfterCommit(savedOrders, SeckillOrderResults.SUCCESS);
+        seckillOrderExpirer.scheduleAfterCommit(savedOrders);
+        seckillOrderResults.recordAfterCommit(duplicateOrders, SeckillOrderResults.DUPLICATE);
+        seckillOrderResults.recordAfterCommit(soldOutOrders, SeckillOrderResults.SOLD_OUT);
     }
 
     /**
@@ -1,20 +1,47 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.StockReconcileDTO;
 import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillSegments;
+import com.hmdp.utils.SeckillVoucherMeta;
+import com.hmdp.utils.SeckillWaitingRoom;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_ARCHIVE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
 
 /**
  * <p>
@@ -27,10 +54,22 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    private static final int MAX_BUYER_SHARD_BITS = 23;
+    private static final DefaultRedisScript<Long> ARCHIVE_CLAIM_SCRIPT;
+    static {
+        ARCHIVE_CLAIM_SCRIPT = new DefaultRedisScript<>();
+        ARCHIVE_CLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_archive_claim.lua"));
+        ARCHIVE_CLAIM_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -53,6 +92,306 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         // 保存秒杀库存到Redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        int segments = segmentsOf(voucher.getStock());
+        saveSeckillStock(voucher.getId(), voucher.getStock(), segments, false);
+        // 保存秒杀券元数据到Redis，秒杀时据此校验时间、选择下单方式
+        saveSeckillVoucherMeta(seckillVoucher, segments, buyerShardBitsOf());
+    }
+
+    @Override
+    public SeckillVoucherMeta saveSeckillVoucherMeta(SeckillVoucher seckillVoucher, int segments, int buyerShardBits) {
+        SeckillVoucherMeta meta = SeckillVoucherMeta.of(seckillVoucher, segments, buyerShardBits);
+        Map<String, Object> metaMap = BeanUtil.beanToMap(meta, new HashMap<>(),
+                CopyOptions.create()
+                        .setIgnoreNullValue(true)
+                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + seckillVoucher.getVoucherId(), metaMap);
+        return meta;
+    }
+
+    @Override
+    public SeckillVoucherMeta preloadSeckillVoucher(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        // 1.已有元数据时沿用其中的分段数和下单用户的记录方式，否则按当前配置
+        //   没有buyerShardBits字段的旧元数据，下单用户保存在set中
+        List<Object> saved = stringRedisTemplate.opsForHash().multiGet(
+                SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("segments", "buyerShardBits"));
+        int segments = saved.get(0) != null
+                ? Integer.parseInt(saved.get(0).toString()) : segmentsOf(seckillVoucher.getStock());
+        int buyerShardBits = saved.get(0) == null ? buyerShardBitsOf()
+                : saved.get(1) != null ? Integer.parseInt(saved.get(1).toString()) : 0;
+        // 2.库存不存在时才写入，不覆盖已有的库存
+        saveSeckillStock(voucherId, seckillVoucher.getStock(), segments, true);
+        // 3.写入元数据，开始、结束时间以数据库为准
+        return saveSeckillVoucherMeta(seckillVoucher, segments, buyerShardBits);
+    }
+
+    @Override
+    public boolean archiveSeckillVoucher(Long voucherId) {
+        // 1.抢占归档标记，已经归档完成或者其它节点正在归档的直接返回
+        //   节点在归档中途宕机时没有完成标记，超过archive-timeout后由其它节点重新归档，以下步骤都可以重复执行
+        String archiveKey = SECKILL_ARCHIVE_KEY + voucherId;
+        SeckillProperties.Lifecycle config = seckillProperties.getLifecycle();
+        Long claimed = stringRedisTemplate.execute(ARCHIVE_CLAIM_SCRIPT, Collections.singletonList(archiveKey),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(config.getArchiveTimeout().toMillis()));
+        if (claimed == null || claimed == 0) {
+            return false;
+        }
+        // 2.找到该秒杀券的所有key
+        String metaKey = SECKILL_VOUCHER_KEY + voucherId;
+        int segments = savedSegmentsOf(voucherId);
+        int buyerShardBits = savedBuyerShardBitsOf(voucherId);
+        List<String> stockKeys = stockKeysOf(voucherId, segments);
+        List<String> orderKeys = orderKeysOf(voucherId, segments);
+        // 3.统计剩余库存和下单用户数
+        Long stock = redisStockOf(stockKeys);
+        long buyers = buyersOf(orderKeys, buyerShardBits);
+        // 3.1.Redis库存为准时，删除前把最终库存写回数据库
+        if (seckillProperties.getStock().isWriteBehind() && stock != null) {
+            flushStock(voucherId, stock);
+        }
+        // 4.与数据库中的订单数对账，订单已经全部落库，Redis中的下单用户只是秒杀期间的副本
+        //   已取消的订单仍占用下单用户名额，也计入订单数
+        int orders = voucherOrderMapper.selectCount(
+                new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        if (orders != buyers) {
+            log.warn("秒杀券" + voucherId + "归档时对账不一致，Redis下单用户数：" + buyers + "，数据库订单数：" + orders);
+        }
+        // 5.保存归档统计信息，重新归档时Redis中的数据可能已经删除，不覆盖上次保存的统计信息
+        Map<String, String> archive = new HashMap<>();
+        archive.put("stock", String.valueOf(stock == null ? 0 : stock));
+        archive.put("buyers", String.valueOf(buyers));
+        archive.put("orders", String.valueOf(orders));
+        archive.put("segments", String.valueOf(segments));
+        archive.forEach((field, value) -> stringRedisTemplate.opsForHash().putIfAbsent(archiveKey, field, value));
+        // 6.删除库存、下单用户、元数据和排队号，UNLINK在后台线程释放内存，不会阻塞Redis
+        List<String> keys = new ArrayList<>(stockKeys);
+        if (segments > 1) {
+            for (int i = 0; i < segments; i++) {
+                keys.add(SeckillSegments.pendingKey(voucherId, i));
+            }
+        }
+        for (String orderKey : orderKeys) {
+            if (buyerShardBits > 0) {
+                keys.addAll(buyerShardKeysOf(orderKey));
+                keys.add(SeckillBuyers.shardsKey(orderKey));
+            } else {
+                keys.add(orderKey);
+            }
+        }
+        keys.add(metaKey);
+        keys.add(SeckillWaitingRoom.ticketKey(voucherId));
+        keys.add(SeckillWaitingRoom.seqKey(voucherId));
+        keys.add(SeckillWaitingRoom.admittedKey(voucherId));
+        stringRedisTemplate.unlink(keys);
+        // 7.最后写入完成标记，之后不会再重新归档
+        stringRedisTemplate.opsForHash().put(archiveKey, "completedAt", String.valueOf(System.currentTimeMillis()));
+        stringRedisTemplate.expire(archiveKey, config.getArchiveTtl().toMillis(), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean flushSeckillStock(Long voucherId) {
+        Long stock = redisStockOf(stockKeysOf(voucherId, savedSegmentsOf(voucherId)));
+        if (stock == null) {
+            // 已经清理或者还没有加载
+            return false;
+        }
+        return flushStock(voucherId, stock);
+    }
+
+    @Override
+    public StockReconcileDTO reconcileSeckillStock(Long voucherId, boolean fix) {
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            return null;
+        }
+        // 1.读取Redis库存、下单用户数，数据库库存、订单数
+        int segments = savedSegmentsOf(voucherId);
+        List<String> stockKeys = stockKeysOf(voucherId, segments);
+        Long redisStock = redisStockOf(stockKeys);
+        long buyers = buyersOf(orderKeysOf(voucherId, segments), savedBuyerShardBitsOf(voucherId));
+        // 已取消的订单仍占用下单用户名额，也计入订单数
+        int orders = voucherOrderMapper.selectCount(
+                new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        StockReconcileDTO report = new StockReconcileDTO();
+        report.setVoucherId(voucherId);
+        report.setRedisStock(redisStock);
+        report.setDbStock(seckillVoucher.getStock());
+        report.setBuyers(buyers);
+        report.setOrders((long) orders);
+        // 下单成功但还没落库的订单，正常情况下是消息队列中待处理的消息数
+        report.setPending(buyers - orders);
+        report.setFixed(false);
+        if (redisStock == null) {
+            return report;
+        }
+        // 2.计算偏差
+        if (seckillProperties.getStock().isWriteBehind()) {
+            // 2.1.Redis库存为准，数据库库存只是定期写回的副本，偏差为还没写回的部分
+            report.setDrift(seckillVoucher.getStock() - redisStock);
+            if (fix && report.getDrift() != 0) {
+                report.setFixed(flushStock(voucherId, redisStock));
+            }
+        } else {
+            // 2.2.数据库逐单扣减库存，取消的订单数据库和Redis都回补了库存，
+            //   初始库存 = 数据库库存 + 未取消的订单数，Redis库存应为 初始库存 - 下单用户数 + 已取消的订单数
+            long expected = seckillVoucher.getStock() + orders - buyers;
+            report.setDrift(expected - redisStock);
+            if (fix && report.getDrift() != 0) {
+                // 几个值不是同一时刻读取的，期间有下单或落库时偏差不准，修复会凭空增减库存，
+                // 只在秒杀已经结束（脚本不再扣减）并且订单已经全部落库后修复
+                if (LocalDateTime.now().isBefore(seckillVoucher.getEndTime())) {
+                    report.setReason("秒杀还未结束");
+                } else if (report.getPending() != 0) {
+                    report.setReason("还有订单没有落库");
+                } else {
+                    // 按偏差增减第一个分段的库存
+                    stringRedisTemplate.opsForValue().increment(stockKeys.get(0), report.getDrift());
+                    report.setFixed(true);
+                }
+            }
+        }
+        if (report.getDrift() != 0 || report.getPending() < 0) {
+            log.warn("秒杀券库存对账不一致：" + report);
+        }
+        return report;
+    }
+
+    /**
+     * 用Redis库存覆盖数据库库存
+     */
+    private boolean flushStock(Long voucherId, long stock) {
+        return seckillVoucherService.update()
+                .set("stock", stock)
+                .eq("voucher_id", voucherId)
+                .ne("stock", stock)
+                .update();
+    }
+
+    /**
+     * Redis中记录的库存分段数，没有元数据时为1
+     */
+    private int savedSegmentsOf(Long voucherId) {
+        Object savedSegments = stringRedisTemplate.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "segments");
+        return savedSegments == null ? 1 : Integer.parseInt(savedSegments.toString());
+    }
+
+    /**
+     * Redis中记录的下单用户分片位数，没有元数据时为0
+     */
+    private int savedBuyerShardBitsOf(Long voucherId) {
+        Object saved = stringRedisTemplate.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "buyerShardBits");
+        return saved == null ? 0 : Integer.parseInt(saved.toString());
+    }
+
+    private List<String> stockKeysOf(Long voucherId, int segments) {
+        List<String> stockKeys = new ArrayList<>();
+        if (segments > 1) {
+            for (int i = 0; i < segments; i++) {
+                stockKeys.add(SeckillSegments.stockKey(voucherId, i));
+            }
+        } else {
+            stockKeys.add(SECKILL_STOCK_KEY + voucherId);
+        }
+        return stockKeys;
+    }
+
+    private List<String> orderKeysOf(Long voucherId, int segments) {
+        List<String> orderKeys = new ArrayList<>();
+        if (segments > 1) {
+            for (int i = 0; i < segments; i++) {
+                orderKeys.add(SeckillSegments.orderKey(voucherId, i));
+            }
+        } else {
+            orderKeys.add(SECKILL_ORDER_KEY + voucherId);
+        }
+        return orderKeys;
+    }
+
+    /**
+     * Redis中的剩余库存，库存key都不存在时返回null
+     */
+    private Long redisStockOf(List<String> stockKeys) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+        if (values == null || values.stream().allMatch(Objects::isNull)) {
+            return null;
+        }
+        long stock = 0;
+        for (String value : values) {
+            stock += value == null ? 0 : Long.parseLong(value);
+        }
+        return stock;
+    }
+
+    private long buyersOf(List<String> orderKeys, int buyerShardBits) {
+        long buyers = 0;
+        for (String orderKey : orderKeys) {
+            if (buyerShardBits <= 0) {
+                Long size = stringRedisTemplate.opsForSet().size(orderKey);
+                buyers += size == null ? 0 : size;
+                continue;
+            }
+            // 分片bitmap，统计每个分片中置位的数量 BITCOUNT
+            for (String shardKey : buyerShardKeysOf(orderKey)) {
+                Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                        connection.stringCommands().bitCount(shardKey.getBytes(StandardCharsets.UTF_8)));
+                buyers += count == null ? 0 : count;
+            }
+        }
+        return buyers;
+    }
+
+    /**
+     * 下单用户bitmap用到的所有分片key
+     */
+    private List<String> buyerShardKeysOf(String orderKey) {
+        List<String> shardKeys = new ArrayList<>();
+        Set<String> shards = stringRedisTemplate.opsForSet().members(SeckillBuyers.shardsKey(orderKey));
+        if (shards != null) {
+            for (String shard : shards) {
+                shardKeys.add(orderKey + ":" + shard);
+            }
+        }
+        return shardKeys;
+    }
+
+    /**
+     * 库存分段数，不超过库存数量
+     */
+    private int segmentsOf(int stock) {
+        return Math.max(1, Math.min(seckillProperties.getStock().getSegments(), stock));
+    }
+
+    /**
+     * 新秒杀券的下单用户分片位数，最大23位：SETBIT到分片末尾时Redis会一次分配整个分片，2^23位为1MB，
+     * 位数再大时一次SETBIT就可能分配几百MB的字符串并阻塞Redis
+     */
+    private int buyerShardBitsOf() {
+        return Math.max(0, Math.min(seckillProperties.getStock().getBuyerShardBits(), MAX_BUYER_SHARD_BITS));
+    }
+
+    /**
+     * 保存秒杀库存到Redis
+     * @param ifAbsent 为true时只写入不存在的库存key
+     */
+    private void saveSeckillStock(Long voucherId, int stock, int segments, boolean ifAbsent) {
+        Map<String, String> stockMap = new HashMap<>();
+        if (segments > 1) {
+            // 分段库存，把库存拆分到多个分段key
+            int[] parts = SeckillSegments.split(stock, segments);
+            for (int i = 0; i < segments; i++) {
+                stockMap.put(SeckillSegments.stockKey(voucherId, i), String.valueOf(parts[i]));
+            }
+        } else {
+            stockMap.put(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        }
+        stockMap.forEach((key, value) -> {
+            if (ifAbsent) {
+                stringRedisTemplate.opsForValue().setIfAbsent(key, value);
+            } else {
+                stringRedisTemplate.opsForValue().set(key, value);
+            }
+        });
     }
 }
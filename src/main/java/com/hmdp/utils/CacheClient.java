@@ -1,59 +1,147 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.IdUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
 
+/**
+ * 缓存工具
+ * 开启本地缓存后，Redis前面再加一层进程内缓存，保存反序列化后的对象，热点key不再访问Redis、解析json。
+ * 写入或删除缓存时通过Redis发布订阅通知其它节点删除本地缓存，本地缓存中的对象是共享的，调用方不能修改。
+ * 缓存值按key前缀选择编解码器（CacheCodec）读写字节，空的字节数组表示缓存的空值
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final CacheProperties cacheProperties;
+    // 本节点的标识，忽略自己发出的失效广播
+    private final String nodeId = IdUtil.fastSimpleUUID();
+    // 名称 -> 编解码器
+    private final Map<String, CacheCodec> codecs = new HashMap<>();
+    // key前缀 -> 本地缓存
+    private final Map<String, Cache<String, LocalEntry>> localCaches = new ConcurrentHashMap<>();
+    // key前缀 -> 存在性过滤器，拦截一定不存在的id
+    private final Map<String, ExistenceFilter> filters = new ConcurrentHashMap<>();
+    // 缓存key -> 正在进行的重建，同一个key的并发未命中共享一次数据库查询
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+    // 缓存key -> 等待其它节点重建的leader线程，收到这个key的失效广播时唤醒
+    private final Map<String, CompletableFuture<Void>> remoteLoads = new ConcurrentHashMap<>();
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final byte[] NULL_VALUE = new byte[0];
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer listenerContainer,
+                       CacheProperties cacheProperties,
+                       List<CacheCodec> codecs) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.cacheProperties = cacheProperties;
+        for (CacheCodec codec : codecs) {
+            this.codecs.put(codec.name(), codec);
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        // 检查配置的编解码器是否存在
+        codecOf(cacheProperties.getCodec());
+        cacheProperties.getCodecs().values().forEach(this::codecOf);
+        if (cacheProperties.getLocal().isEnabled()) {
+            listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        }
+    }
+
+    /**
+     * 为key前缀注册存在性过滤器，查询时过滤器判断不存在的id直接返回null，不再访问Redis和数据库
+     */
+    public void registerFilter(String keyPrefix, ExistenceFilter filter) {
+        filters.put(keyPrefix, filter);
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, codecFor(key).encode(value), time, unit);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除缓存，同时删除所有节点的本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        // 设置逻辑过期，写入Redis
+        setRaw(key, codecFor(key).encodeWithExpire(value, expireTimeOf(time, unit)), null, null);
+        invalidateLocal(key);
     }
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
+        // 0.布隆过滤器判断id一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        // 0.查询本地缓存
+        LocalEntry local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            return type.cast(local.value);
+        }
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
+        R cached = decode(key, bytes, type);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        if (cached != null) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            putLocal(keyPrefix, key, cached, null);
+            return cached;
         }
         // 判断命中的是否是空值
-        if (json != null) {
+        if (isNullValue(bytes)) {
             // 返回一个错误信息
             return null;
         }
@@ -63,32 +151,43 @@ public class CacheClient {
         // 5.不存在，返回错误
         if (r == null) {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setRaw(key, NULL_VALUE, CACHE_NULL_TTL, TimeUnit.MINUTES);
             // 返回错误信息
             return null;
         }
         // 6.存在，写入redis
         this.set(key, r, time, unit);
+        putLocal(keyPrefix, key, r, null);
         return r;
     }
 
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 0.布隆过滤器判断id一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        // 0.查询本地缓存，逻辑过期后要回到Redis判断是否需要重建
+        LocalEntry local = getLocal(keyPrefix, key, type);
+        if (local != null && local.expireTime.isAfter(LocalDateTime.now())) {
+            return type.cast(local.value);
+        }
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || isNullValue(bytes)) {
             // 3.存在，直接返回
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 4.命中，一次解码出数据和逻辑过期时间，无法解码的按已过期重建
+        RedisData redisData = decodeWithExpire(key, bytes, type);
+        R r = redisData == null ? null : type.cast(redisData.getData());
+        LocalDateTime expireTime = redisData == null ? LocalDateTime.MIN : redisData.getExpireTime();
         // 5.判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())) {
             // 5.1.未过期，直接返回店铺信息
+            putLocal(keyPrefix, key, r, expireTime);
             return r;
         }
         // 5.2.已过期，需要缓存重建
@@ -120,58 +219,540 @@ public class CacheClient {
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 0.布隆过滤器判断id一定不存在，直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        // 0.查询本地缓存
+        LocalEntry local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            return type.cast(local.value);
+        }
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
+        R cached = decode(key, bytes, type);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
+        if (cached != null) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+            putLocal(keyPrefix, key, cached, null);
+            return cached;
         }
         // 判断命中的是否是空值
-        if (shopJson != null) {
+        if (isNullValue(bytes)) {
             // 返回一个错误信息
             return null;
         }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
+        // 4.实现缓存重建，同一个key在本节点只有一个线程（leader）去重建，其它线程等待它的结果
+        CompletableFuture<Object> loading = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, loading);
+        if (inFlight != null) {
+            // 4.1.已经有线程在重建，等待结果，结果出来后立即唤醒
+            return type.cast(awaitLoad(inFlight));
+        }
+        try {
+            R r = loadWithMutex(keyPrefix, key, id, type, dbFallback, time, unit);
+            loading.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, loading);
+        }
+    }
+
+    /**
+     * leader线程获取互斥锁后查询数据库、写入缓存
+     * 互斥锁被其它节点持有时，等待其它节点写入缓存后的失效广播（开启本地缓存时才有广播），
+     * 没有广播时每50ms再查一次Redis，直到其它节点重建完成或者自己拿到锁，最多等待互斥锁的有效期
+     */
+    private <R, ID> R loadWithMutex(
+            String keyPrefix, String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 1.获取互斥锁
         String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(LOCK_SHOP_TTL);
+        while (!tryLock(lockKey)) {
+            // 1.1.获取失败，其它节点正在重建，等待它重建完成后再查询Redis
+            if (System.nanoTime() - deadline >= 0) {
+                throw new RuntimeException("等待缓存重建超时");
+            }
+            awaitRemoteLoad(key);
+            byte[] bytes = getRaw(key);
+            R cached = decode(key, bytes, type);
+            if (cached != null) {
+                putLocal(keyPrefix, key, cached, null);
+                return cached;
+            }
+            if (isNullValue(bytes)) {
+                return null;
+            }
+        }
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
+            // 2.获取锁成功，再次查询Redis，其它节点可能刚刚重建完成
+            byte[] bytes = getRaw(key);
+            R cached = decode(key, bytes, type);
+            if (cached != null) {
+                putLocal(keyPrefix, key, cached, null);
+                return cached;
+            }
+            if (isNullValue(bytes)) {
+                return null;
+            }
+            // 3.根据id查询数据库
+            R r = dbFallback.apply(id);
+            // 4.不存在，将空值写入redis
             if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
+                setRaw(key, NULL_VALUE, CACHE_NULL_TTL, TimeUnit.MINUTES);
+                // 广播给正在等待的其它节点
+                invalidateLocal(key);
                 return null;
             }
-            // 6.存在，写入redis
+            // 5.存在，写入redis
             this.set(key, r, time, unit);
+            putLocal(keyPrefix, key, r, null);
+            return r;
+        } finally {
+            // 6.释放锁
+            unlock(lockKey);
+        }
+    }
+
+    /**
+     * 等待其它节点重建key的失效广播，最多等待50ms
+     */
+    private void awaitRemoteLoad(String key) {
+        CompletableFuture<Void> signal = remoteLoads.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            signal.get(50, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
+        } catch (ExecutionException | TimeoutException e) {
+            // 超时，由调用方再查一次Redis
+        } finally {
+            remoteLoads.remove(key, signal);
         }
-        // 8.返回
-        return r;
+    }
+
+    /**
+     * 等待leader线程的重建结果，最多等待互斥锁的有效期
+     */
+    private Object awaitLoad(CompletableFuture<Object> inFlight) {
+        try {
+            return inFlight.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("等待缓存重建超时", e);
+        }
+    }
+
+    /**
+     * 批量查询，缓存空值解决缓存穿透，语义与queryWithPassThrough一致
+     * 一次MGET查询Redis，未命中的id一次查询数据库，再用管道写回Redis
+     * @param dbFallback 根据id集合批量查询数据库，例如 IService::listByIds
+     * @param idGetter 从数据库查询结果中取出id，用于和输入的id对应
+     * @return 按输入顺序返回，不存在的位置为null
+     */
+    public <R, ID> List<R> queryBatchWithPassThrough(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        Map<ID, R> results = new HashMap<>();
+        // 1.查询本地缓存，过滤器判断一定不存在的id不再查询
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : distinctIds(keyPrefix, ids)) {
+            LocalEntry local = getLocal(keyPrefix, keyPrefix + id, type);
+            if (local != null) {
+                results.put(id, type.cast(local.value));
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        // 2.一次MGET查询Redis
+        List<byte[]> values = multiGet(keyPrefix, remoteIds);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values.get(i);
+            R r = decode(keyPrefix + id, bytes, type);
+            if (r != null) {
+                // 2.1.命中
+                results.put(id, r);
+                putLocal(keyPrefix, keyPrefix + id, r, null);
+            } else if (!isNullValue(bytes)) {
+                // 2.2.未命中，命中空值的直接返回null
+                missIds.add(id);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return inInputOrder(ids, results);
+        }
+        // 3.未命中的id一次查询数据库
+        Map<ID, R> loaded = loadAll(missIds, dbFallback, idGetter);
+        // 4.管道写回Redis，数据库中不存在的写入空值
+        CacheCodec codec = codecFor(keyPrefix);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (ID id : missIds) {
+                String key = keyPrefix + id;
+                R r = loaded.get(id);
+                if (r == null) {
+                    stringConnection.set(rawKey(key), NULL_VALUE, Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES),
+                            RedisStringCommands.SetOption.UPSERT);
+                } else {
+                    stringConnection.set(rawKey(key), codec.encode(r), Expiration.from(time, unit),
+                            RedisStringCommands.SetOption.UPSERT);
+                    invalidateLocal(stringConnection, key);
+                }
+            }
+            return null;
+        });
+        loaded.forEach((id, r) -> putLocal(keyPrefix, keyPrefix + id, r, null));
+        results.putAll(loaded);
+        return inInputOrder(ids, results);
+    }
+
+    /**
+     * 批量查询，逻辑过期解决缓存击穿
+     * 已过期的数据直接返回，获取到互斥锁的id在独立线程中一次查询数据库重建；
+     * 没有预热到Redis中的id一次查询数据库，按逻辑过期写入，列表中不会缺数据
+     * @return 按输入顺序返回，不存在的位置为null
+     */
+    public <R, ID> List<R> queryBatchWithLogicalExpire(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        Map<ID, R> results = new HashMap<>();
+        LocalDateTime now = LocalDateTime.now();
+        // 1.查询本地缓存，逻辑过期的要回到Redis判断是否需要重建
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : distinctIds(keyPrefix, ids)) {
+            LocalEntry local = getLocal(keyPrefix, keyPrefix + id, type);
+            if (local != null && local.expireTime.isAfter(now)) {
+                results.put(id, type.cast(local.value));
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        // 2.一次MGET查询Redis，无法解码的和未预热的一样处理
+        List<byte[]> values = multiGet(keyPrefix, remoteIds);
+        List<ID> missIds = new ArrayList<>();
+        List<ID> expiredIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values.get(i);
+            RedisData redisData = bytes == null || isNullValue(bytes) ? null : decodeWithExpire(keyPrefix + id, bytes, type);
+            if (redisData == null) {
+                missIds.add(id);
+                continue;
+            }
+            R r = type.cast(redisData.getData());
+            results.put(id, r);
+            if (redisData.getExpireTime().isAfter(now)) {
+                // 2.1.未过期
+                putLocal(keyPrefix, keyPrefix + id, r, redisData.getExpireTime());
+            } else {
+                // 2.2.已过期，先返回旧数据
+                expiredIds.add(id);
+            }
+        }
+        // 3.未预热的id一次查询数据库，按逻辑过期写回
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = loadAll(missIds, dbFallback, idGetter);
+            writeLogicalExpire(keyPrefix, loaded, time, unit);
+            results.putAll(loaded);
+        }
+        // 4.已过期的id获取互斥锁，获取成功的在独立线程中一次重建
+        List<ID> lockedIds = tryLockAll(expiredIds);
+        if (!lockedIds.isEmpty()) {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    writeLogicalExpire(keyPrefix, loadAll(lockedIds, dbFallback, idGetter), time, unit);
+                } catch (Exception e) {
+                    log.error("批量重建缓存异常：" + keyPrefix, e);
+                } finally {
+                    unlockAll(lockedIds);
+                }
+            });
+        }
+        return inInputOrder(ids, results);
+    }
+
+    /**
+     * 去掉重复和过滤器判断一定不存在的id
+     */
+    private <ID> List<ID> distinctIds(String keyPrefix, Collection<ID> ids) {
+        Set<ID> distinct = new LinkedHashSet<>();
+        for (ID id : ids) {
+            if (id != null && mightContain(keyPrefix, id)) {
+                distinct.add(id);
+            }
+        }
+        return new ArrayList<>(distinct);
+    }
+
+    private <ID> List<byte[]> multiGet(String keyPrefix, List<ID> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            keys[i] = rawKey(keyPrefix + ids.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+        return values == null ? Collections.nCopies(ids.size(), null) : values;
+    }
+
+    private <R, ID> Map<ID, R> loadAll(List<ID> ids, Function<Collection<ID>, List<R>> dbFallback, Function<R, ID> idGetter) {
+        Map<ID, R> loaded = new HashMap<>();
+        List<R> list = dbFallback.apply(ids);
+        if (list != null) {
+            for (R r : list) {
+                loaded.put(idGetter.apply(r), r);
+            }
+        }
+        return loaded;
+    }
+
+    private <R, ID> void writeLogicalExpire(String keyPrefix, Map<ID, R> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        CacheCodec codec = codecFor(keyPrefix);
+        LocalDateTime expireTime = expireTimeOf(time, unit);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            values.forEach((id, r) -> {
+                String key = keyPrefix + id;
+                stringConnection.set(rawKey(key), codec.encodeWithExpire(r, expireTime));
+                invalidateLocal(stringConnection, key);
+            });
+            return null;
+        });
+    }
+
+    private static LocalDateTime expireTimeOf(Long time, TimeUnit unit) {
+        return LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+    }
+
+    private static <R, ID> List<R> inInputOrder(Collection<ID> ids, Map<ID, R> results) {
+        List<R> list = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            list.add(id == null ? null : results.get(id));
+        }
+        return list;
+    }
+
+    /**
+     * 用管道获取多个互斥锁
+     * @return 获取成功的id
+     */
+    private <ID> List<ID> tryLockAll(List<ID> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Object> flags = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (ID id : ids) {
+                stringConnection.set(LOCK_SHOP_KEY + id, "1", Expiration.seconds(LOCK_SHOP_TTL),
+                        RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
+        List<ID> locked = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (BooleanUtil.isTrue((Boolean) flags.get(i))) {
+                locked.add(ids.get(i));
+            }
+        }
+        return locked;
+    }
+
+    private <ID> void unlockAll(List<ID> ids) {
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            keys.add(LOCK_SHOP_KEY + id);
+        }
+        stringRedisTemplate.delete(keys);
+    }
+
+    /**
+     * key对应的编解码器，按最长的key前缀匹配，没有配置的使用默认编解码器
+     */
+    private CacheCodec codecFor(String key) {
+        String name = cacheProperties.getCodec();
+        int matched = -1;
+        for (Map.Entry<String, String> entry : cacheProperties.getCodecs().entrySet()) {
+            if (key.startsWith(entry.getKey()) && entry.getKey().length() > matched) {
+                name = entry.getValue();
+                matched = entry.getKey().length();
+            }
+        }
+        return codecOf(name);
+    }
+
+    private CacheCodec codecOf(String name) {
+        CacheCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new IllegalStateException("不支持的缓存编解码器：" + name + "，可选：" + codecs.keySet());
+        }
+        return codec;
+    }
+
+    /**
+     * 解码缓存，未命中、空值或者无法解码（例如切换了编解码器）时返回null
+     */
+    private <R> R decode(String key, byte[] bytes, Class<R> type) {
+        if (bytes == null || isNullValue(bytes)) {
+            return null;
+        }
+        try {
+            return codecFor(key).decode(bytes, type);
+        } catch (RuntimeException e) {
+            log.debug("缓存数据无法解码，按未命中处理：{}", key, e);
+            return null;
+        }
+    }
+
+    private RedisData decodeWithExpire(String key, byte[] bytes, Class<?> type) {
+        try {
+            return codecFor(key).decodeWithExpire(bytes, type);
+        } catch (RuntimeException e) {
+            log.debug("缓存数据无法解码，按未命中处理：{}", key, e);
+            return null;
+        }
+    }
+
+    private static boolean isNullValue(byte[] bytes) {
+        return bytes != null && bytes.length == 0;
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    /**
+     * 写入字节，time为null时不过期
+     */
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey(key), value, expiration, RedisStringCommands.SetOption.UPSERT));
+    }
+
+    private boolean mightContain(String keyPrefix, Object id) {
+        ExistenceFilter filter = filters.get(keyPrefix);
+        return filter == null || filter.mightContain(id);
     }
 
     private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
     }
 
     private void unlock(String key) {
         stringRedisTemplate.delete(key);
     }
+
+    /**
+     * 查询本地缓存，没有开启或者类型不一致时返回null
+     */
+    private LocalEntry getLocal(String keyPrefix, String key, Class<?> type) {
+        Cache<String, LocalEntry> cache = localCacheOf(keyPrefix);
+        if (cache == null) {
+            return null;
+        }
+        LocalEntry entry = cache.getIfPresent(key);
+        return entry != null && type.isInstance(entry.value) ? entry : null;
+    }
+
+    /**
+     * 写入本地缓存
+     * @param expireTime 逻辑过期时间，为null表示只按expire-after-write过期
+     */
+    private void putLocal(String keyPrefix, String key, Object value, LocalDateTime expireTime) {
+        Cache<String, LocalEntry> cache = localCacheOf(keyPrefix);
+        if (cache != null && value != null) {
+            cache.put(key, new LocalEntry(value, expireTime == null ? LocalDateTime.MAX : expireTime));
+        }
+    }
+
+    private Cache<String, LocalEntry> localCacheOf(String keyPrefix) {
+        CacheProperties.Local config = cacheProperties.getLocal();
+        if (!config.isEnabled() || !(config.getPrefixes().isEmpty() || config.getPrefixes().contains(keyPrefix))) {
+            return null;
+        }
+        return localCaches.computeIfAbsent(keyPrefix, prefix -> Caffeine.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(config.getExpireAfterWrite())
+                .build());
+    }
+
+    /**
+     * 删除本节点的本地缓存，并广播给其它节点
+     */
+    private void invalidateLocal(String key) {
+        if (!cacheProperties.getLocal().isEnabled()) {
+            return;
+        }
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, nodeId + ":" + key);
+    }
+
+    /**
+     * 在管道中删除本地缓存并广播
+     */
+    private void invalidateLocal(StringRedisConnection connection, String key) {
+        if (!cacheProperties.getLocal().isEnabled()) {
+            return;
+        }
+        evictLocal(key);
+        connection.publish(CACHE_INVALIDATE_CHANNEL, nodeId + ":" + key);
+    }
+
+    private void evictLocal(String key) {
+        localCaches.forEach((keyPrefix, cache) -> {
+            if (key.startsWith(keyPrefix)) {
+                cache.invalidate(key);
+            }
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 消息格式 nodeId:key
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0) {
+            log.error("无效的缓存失效广播：{}", body);
+            return;
+        }
+        if (!nodeId.equals(body.substring(0, index))) {
+            String key = body.substring(index + 1);
+            evictLocal(key);
+            // 唤醒等待这个key重建的线程
+            CompletableFuture<Void> signal = remoteLoads.remove(key);
+            if (signal != null) {
+                signal.complete(null);
+            }
+        }
+    }
+
+    private static class LocalEntry {
+        private final Object value;
+        private final LocalDateTime expireTime;
+
+        private LocalEntry(Object value, LocalDateTime expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+    }
 }
\ No newline at end of file
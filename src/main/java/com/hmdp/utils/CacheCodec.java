@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存值的编解码，CacheClient按key前缀选择，对应配置 hmdp.cache.codecs
+ * 空的字节数组表示缓存的空值，编码结果不能为空；解码失败时抛出异常，CacheClient按未命中处理
+ */
+public interface CacheCodec {
+
+    /**
+     * 编解码器名称，例如hutool、jackson、kryo
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 带逻辑过期时间的编码，与RedisData对应
+     */
+    byte[] encodeWithExpire(Object value, LocalDateTime expireTime);
+
+    /**
+     * 一次解码出逻辑过期时间和type类型的数据
+     */
+    RedisData decodeWithExpire(byte[] bytes, Class<?> type);
+}
@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+/**
+ * 存在性过滤器，CacheClient在查询缓存之前用它拦截一定不存在的id
+ */
+public interface ExistenceFilter {
+
+    /**
+     * id可能存在时返回true，返回false时一定不存在
+     */
+    boolean mightContain(Object id);
+
+    /**
+     * 新增数据后加入过滤器
+     */
+    void add(Object id);
+}
@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import lombok.Data;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * jackson json编解码，与hutool写入的格式相同（忽略null，时间为毫秒时间戳），两者可以互相读取
+ * 直接绑定到目标类型，逻辑过期的数据按 ExpireData<type> 一次解析
+ */
+@Component
+public class JacksonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "jackson";
+
+    private final ObjectMapper objectMapper;
+    // 数据类型 -> ExpireData<数据类型>
+    private final Map<Class<?>, JavaType> expireTypes = new ConcurrentHashMap<>();
+
+    public JacksonCacheCodec() {
+        SimpleModule timeModule = new SimpleModule();
+        timeModule.addSerializer(LocalDateTime.class, new EpochMilliSerializer());
+        timeModule.addDeserializer(LocalDateTime.class, new EpochMilliDeserializer());
+        this.objectMapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .registerModule(timeModule);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("缓存数据序列化失败：" + value.getClass().getName(), e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            return objectMapper.readValue(bytes, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据反序列化失败：" + type.getName(), e);
+        }
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime) {
+        ExpireData<Object> expireData = new ExpireData<>();
+        expireData.setData(value);
+        expireData.setExpireTime(expireTime);
+        return encode(expireData);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        JavaType expireType = expireTypes.computeIfAbsent(type,
+                t -> objectMapper.getTypeFactory().constructParametricType(ExpireData.class, t));
+        ExpireData<?> expireData;
+        try {
+            expireData = objectMapper.readValue(bytes, expireType);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据反序列化失败：" + type.getName(), e);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(expireData.getData());
+        redisData.setExpireTime(expireData.getExpireTime());
+        return redisData;
+    }
+
+    /**
+     * 与RedisData的json结构相同，data带有具体类型
+     */
+    @Data
+    private static class ExpireData<T> {
+        private LocalDateTime expireTime;
+        private T data;
+    }
+
+    /**
+     * LocalDateTime按系统时区写为毫秒时间戳，与hutool一致
+     */
+    private static class EpochMilliSerializer extends JsonSerializer<LocalDateTime> {
+        @Override
+        public void serialize(LocalDateTime value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeNumber(value.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+    }
+
+    private static class EpochMilliDeserializer extends JsonDeserializer<LocalDateTime> {
+        @Override
+        public LocalDateTime deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            if (p.hasToken(JsonToken.VALUE_NUMBER_INT)) {
+                return LocalDateTime.ofInstant(Instant.ofEpochMilli(p.getLongValue()), ZoneId.systemDefault());
+            }
+            // 兼容字符串格式，例如 2021-12-22T10:10:10
+            return LocalDateTime.parse(p.getText());
+        }
+    }
+}
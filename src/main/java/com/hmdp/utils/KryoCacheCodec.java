@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * kryo二进制编解码，不写字段名，数字按变长编码，体积和解码开销都比json小
+ * 格式：类型标记(1) + 字段签名(4) + [逻辑过期时间戳(变长)] + kryo数据
+ * 字段签名由类的字段名和字段类型计算，类的字段变化后旧数据解码失败，CacheClient按未命中重新加载
+ */
+@Component
+public class KryoCacheCodec implements CacheCodec {
+
+    public static final String NAME = "kryo";
+
+    private static final byte PLAIN = 1;
+    private static final byte WITH_EXPIRE = 2;
+
+    // Kryo不是线程安全的，用对象池复用
+    private final Pool<Kryo> kryoPool = new Pool<Kryo>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            // 缓存的都是普通的实体类，不需要预先注册，也不需要处理循环引用
+            kryo.setRegistrationRequired(false);
+            kryo.setReferences(false);
+            return kryo;
+        }
+    };
+    private final Pool<Output> outputPool = new Pool<Output>(true, false, 64) {
+        @Override
+        protected Output create() {
+            return new Output(1024, -1);
+        }
+    };
+    // 类型 -> 字段签名
+    private final Map<Class<?>, Integer> signatures = new ConcurrentHashMap<>();
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return write(PLAIN, value, null);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Input input = new Input(bytes);
+        readHeader(input, PLAIN, type);
+        return read(input, type);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime) {
+        return write(WITH_EXPIRE, value, expireTime);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        Input input = new Input(bytes);
+        readHeader(input, WITH_EXPIRE, type);
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(input.readVarLong(true)), ZoneId.systemDefault()));
+        redisData.setData(read(input, type));
+        return redisData;
+    }
+
+    private byte[] write(byte kind, Object value, LocalDateTime expireTime) {
+        Kryo kryo = kryoPool.obtain();
+        Output output = outputPool.obtain();
+        try {
+            output.writeByte(kind);
+            output.writeInt(signatureOf(value.getClass()));
+            if (expireTime != null) {
+                output.writeVarLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), true);
+            }
+            kryo.writeObject(output, value);
+            return output.toBytes();
+        } finally {
+            output.reset();
+            outputPool.free(output);
+            kryoPool.free(kryo);
+        }
+    }
+
+    private <T> T read(Input input, Class<T> type) {
+        Kryo kryo = kryoPool.obtain();
+        try {
+            return kryo.readObject(input, type);
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+
+    private void readHeader(Input input, byte kind, Class<?> type) {
+        if (input.limit() < 5 || input.readByte() != kind || input.readInt() != signatureOf(type)) {
+            throw new IllegalStateException("缓存数据与类型不一致：" + type.getName());
+        }
+    }
+
+    /**
+     * 按类层次中所有参与序列化的字段名和字段类型计算签名
+     */
+    private int signatureOf(Class<?> type) {
+        return signatures.computeIfAbsent(type, t -> {
+            CRC32 crc = new CRC32();
+            crc.update(t.getName().getBytes(StandardCharsets.UTF_8));
+            for (Class<?> c = t; c != null && c != Object.class; c = c.getSuperclass()) {
+                Field[] fields = c.getDeclaredFields();
+                Arrays.sort(fields, Comparator.comparing(Field::getName));
+                for (Field field : fields) {
+                    if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+                        continue;
+                    }
+                    crc.update((field.getName() + ":" + field.getType().getName() + ";").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return (int) crc.getValue();
+        });
+    }
+}
@@ -0,0 +1,445 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.IdUtil;
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOOM_TTL;
+
+/**
+ * 基于Redis bitmap的布隆过滤器，每个节点在本地保存一份位数组，判断时不访问Redis
+ * 1.Redis中保存元数据 cache:bloom:名称 (version, bits, hashes, capacity) 和位数组 cache:bloom:名称:version
+ * 2.启动时从Redis加载位数组，不存在或者数据量超过容量时，由一个节点从数据库全量构建一个更大的新版本，
+ *   构建完成后广播，其它节点加载新版本，旧版本删除
+ * 3.新增数据时先写Redis（lua脚本校验版本），再写本地，并广播给其它节点；定期从Redis重新加载，补上漏掉的广播
+ * 4.加载完成之前mightContain总是返回true，不影响正常查询
+ * 5.写入失败时过滤器中可能缺少已经存在的数据，立即安排重建；另外按rebuildInterval定期重建，兜底其它遗漏
+ */
+@Slf4j
+public class RedisBloomFilter implements ExistenceFilter, MessageListener {
+
+    private static final DefaultRedisScript<Long> BLOOM_ADD_SCRIPT;
+    static {
+        BLOOM_ADD_SCRIPT = new DefaultRedisScript<>();
+        BLOOM_ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        BLOOM_ADD_SCRIPT.setResultType(Long.class);
+    }
+    // Redis字符串最大512MB
+    private static final long MAX_BITS = 1L << 32;
+
+    private final String name;
+    private final String metaKey;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final CacheProperties.Bloom config;
+    // 按id升序查询大于给定id的一页id
+    private final Function<Long, List<Long>> idLoader;
+    // 数据库中的数据量
+    private final Supplier<Long> counter;
+    private final String nodeId = IdUtil.fastSimpleUUID();
+
+    private volatile Snapshot snapshot;
+    private volatile boolean running;
+    // 有数据写入失败，过滤器中可能缺少这些数据，需要重建
+    private volatile boolean stale;
+    private ScheduledExecutorService bloomExecutor;
+
+    public RedisBloomFilter(String name,
+                            StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer listenerContainer,
+                            CacheProperties.Bloom config,
+                            Function<Long, List<Long>> idLoader,
+                            Supplier<Long> counter) {
+        this.name = name;
+        this.metaKey = CACHE_BLOOM_KEY + name;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.config = config;
+        this.idLoader = idLoader;
+        this.counter = counter;
+    }
+
+    public void start() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        running = true;
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+        bloomExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("bloom-" + name + "-", true));
+        // 1.后台加载，其它节点正在构建时每秒重试一次
+        bloomExecutor.submit(() -> {
+            while (running && snapshot == null) {
+                refreshQuietly();
+                if (snapshot == null) {
+                    ThreadUtil.sleep(1000);
+                }
+            }
+        });
+        // 2.定期检查容量、从Redis重新加载
+        long interval = config.getCheckInterval().toMillis();
+        if (interval > 0) {
+            bloomExecutor.scheduleWithFixedDelay(this::refreshQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        listenerContainer.removeMessageListener(this);
+        bloomExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean mightContain(Object id) {
+        Snapshot current = snapshot;
+        if (current == null || id == null) {
+            return true;
+        }
+        return current.containsAll(current.meta.positionsOf(id));
+    }
+
+    /**
+     * 加入过滤器，写入失败时不抛出异常，安排重建
+     */
+    @Override
+    public void add(Object id) {
+        if (!running || id == null) {
+            return;
+        }
+        try {
+            if (addToRedis(id)) {
+                return;
+            }
+            log.warn("布隆过滤器{}写入失败，安排重建：{}", name, id);
+        } catch (Exception e) {
+            log.error("布隆过滤器" + name + "写入异常，安排重建：" + id, e);
+        }
+        stale = true;
+        bloomExecutor.submit(this::refreshQuietly);
+    }
+
+    /**
+     * @return 是否写入成功，过滤器还没有构建时也返回true
+     */
+    private boolean addToRedis(Object id) {
+        Snapshot current = snapshot;
+        // 1.本地还没有加载时按Redis中的元数据计算位置
+        Meta meta = current != null ? current.meta : readMeta();
+        for (int i = 0; i < 3 && meta != null; i++) {
+            // 2.写入Redis，版本不一致说明已经重建，按新的元数据再写一次
+            long[] positions = meta.positionsOf(id);
+            List<String> args = new ArrayList<>(positions.length + 1);
+            args.add(meta.version);
+            for (long position : positions) {
+                args.add(String.valueOf(position));
+            }
+            Long result = stringRedisTemplate.execute(BLOOM_ADD_SCRIPT, Collections.singletonList(metaKey), args.toArray());
+            if (result == null || result == 0) {
+                meta = readMeta();
+                continue;
+            }
+            // 3.写入本地，本地版本落后时后台重新加载
+            if (current != null && current.meta.version.equals(meta.version)) {
+                current.setAll(positions);
+            } else if (current != null) {
+                bloomExecutor.submit(this::refreshQuietly);
+            }
+            // 4.广播给其它节点 名称:add:version:id:nodeId
+            stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL,
+                    name + ":add:" + meta.version + ":" + id + ":" + nodeId);
+            return true;
+        }
+        // 还没有构建时，构建时会从数据库读到这条数据
+        return meta == null;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 消息格式 名称:add:version:id:nodeId 或 名称:reload:version
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+        if (parts.length < 3 || !name.equals(parts[0]) || !running) {
+            return;
+        }
+        Snapshot current = snapshot;
+        if ("add".equals(parts[1]) && parts.length == 5) {
+            if (current != null && current.meta.version.equals(parts[2]) && !nodeId.equals(parts[4])) {
+                current.setAll(current.meta.positionsOf(parts[3]));
+            }
+        } else if ("reload".equals(parts[1])) {
+            if (current == null || !current.meta.version.equals(parts[2])) {
+                bloomExecutor.submit(this::refreshQuietly);
+            }
+        }
+    }
+
+    private synchronized void refreshQuietly() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            log.error("加载布隆过滤器异常：" + name, e);
+        }
+        // 需要重建但是没有完成（Redis异常或者其它节点正在构建），1秒后重试，不等下一次定期检查
+        if (stale && running) {
+            bloomExecutor.schedule(this::refreshQuietly, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 从Redis加载位数组，不存在、超出容量、有数据写入失败或者到了定期重建的时间时重建
+     */
+    private void refresh() {
+        Meta meta = readMeta();
+        if (meta == null || stale || counter.get() > meta.capacity || expired(meta)) {
+            rebuild(meta);
+            return;
+        }
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(meta.bitmapKey(metaKey).getBytes(StandardCharsets.UTF_8)));
+        if (bytes == null) {
+            // 位数组被删除了
+            rebuild(null);
+            return;
+        }
+        Snapshot current = snapshot;
+        if (current != null && current.meta.version.equals(meta.version)) {
+            // 同一版本的位只会增加，合并到本地即可，不会丢掉并发写入的位
+            current.merge(bytes);
+            return;
+        }
+        Snapshot loaded = new Snapshot(meta);
+        loaded.merge(bytes);
+        snapshot = loaded;
+        log.debug("布隆过滤器{}加载完成，版本：{}，位数：{}", name, meta.version, meta.bits);
+    }
+
+    /**
+     * 版本号是构建时的时间戳
+     */
+    private boolean expired(Meta meta) {
+        long interval = config.getRebuildInterval().toMillis();
+        return interval > 0 && System.currentTimeMillis() - Long.parseLong(meta.version) >= interval;
+    }
+
+    /**
+     * 从数据库全量构建新版本，同一时间只有一个节点构建
+     */
+    private void rebuild(Meta old) {
+        // 1.获取锁，获取失败说明其它节点正在构建，等待广播或下一次加载
+        String lockKey = LOCK_BLOOM_KEY + name;
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, nodeId, LOCK_BLOOM_TTL, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(locked)) {
+            return;
+        }
+        // 之后写入失败的数据由这次构建或下一次构建补上
+        boolean wasStale = stale;
+        stale = false;
+        try {
+            // 2.按当前数据量的growth倍分配
+            long count = counter.get();
+            long capacity = Math.max(config.getExpectedInsertions(), (long) Math.ceil(count * config.getGrowth()));
+            Meta meta = Meta.of(String.valueOf(System.currentTimeMillis()), capacity, config.getFpp());
+            Snapshot built = new Snapshot(meta);
+            // 3.扫描数据库中所有id
+            scan(built);
+            // 4.写入位数组，再切换元数据，切换之前写入旧版本的id由第5步补上
+            String bitmapKey = meta.bitmapKey(metaKey);
+            byte[] bytes = built.toBytes();
+            stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+                connection.set(bitmapKey.getBytes(StandardCharsets.UTF_8), bytes);
+                return null;
+            });
+            Map<String, String> fields = new HashMap<>();
+            fields.put("version", meta.version);
+            fields.put("bits", String.valueOf(meta.bits));
+            fields.put("hashes", String.valueOf(meta.hashes));
+            fields.put("capacity", String.valueOf(meta.capacity));
+            stringRedisTemplate.opsForHash().putAll(metaKey, fields);
+            snapshot = built;
+            // 5.补上构建期间新增的数据：id较小的数据可能在扫描之后才提交，所以重新扫描全部id，
+            //   只写入新版本中还没有的，切换之后新增的数据直接写入新版本
+            long lastId = 0L;
+            for (List<Long> ids = idLoader.apply(lastId); !ids.isEmpty(); ids = idLoader.apply(lastId)) {
+                for (Long id : ids) {
+                    if (!built.containsAll(meta.positionsOf(id)) && !addToRedis(id)) {
+                        throw new IllegalStateException("布隆过滤器写入失败：" + id);
+                    }
+                    lastId = id;
+                }
+            }
+            // 6.通知其它节点加载新版本，删除旧版本
+            stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, name + ":reload:" + meta.version);
+            if (old != null) {
+                stringRedisTemplate.unlink(old.bitmapKey(metaKey));
+            }
+            log.warn("布隆过滤器{}重建完成，数据量：{}，容量：{}，位数：{}", name, count, capacity, meta.bits);
+        } catch (RuntimeException e) {
+            stale = stale || wasStale;
+            throw e;
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    /**
+     * 扫描数据库中所有id写入本地位数组
+     */
+    private void scan(Snapshot target) {
+        long lastId = 0L;
+        for (List<Long> ids = idLoader.apply(lastId); !ids.isEmpty(); ids = idLoader.apply(lastId)) {
+            for (Long id : ids) {
+                target.setAll(target.meta.positionsOf(id));
+                lastId = id;
+            }
+        }
+    }
+
+    private Meta readMeta() {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(metaKey);
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return new Meta(
+                (String) entries.get("version"),
+                Long.parseLong((String) entries.get("bits")),
+                Integer.parseInt((String) entries.get("hashes")),
+                Long.parseLong((String) entries.get("capacity")));
+    }
+
+    /**
+     * 过滤器的参数，bits和hashes按容量和误判率计算
+     */
+    static class Meta {
+        private final String version;
+        private final long bits;
+        private final int hashes;
+        private final long capacity;
+
+        Meta(String version, long bits, int hashes, long capacity) {
+            this.version = version;
+            this.bits = bits;
+            this.hashes = hashes;
+            this.capacity = capacity;
+        }
+
+        static Meta of(String version, long capacity, double fpp) {
+            // m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+            capacity = Math.max(1, capacity);
+            long bits = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            bits = Math.min(MAX_BITS, Math.max(64, bits));
+            int hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+            return new Meta(version, bits, hashes, capacity);
+        }
+
+        private String bitmapKey(String metaKey) {
+            return metaKey + ":" + version;
+        }
+
+        /**
+         * 双重哈希 h1 + i*h2 得到k个位置
+         */
+        long[] positionsOf(Object id) {
+            long[] hash = MurmurHash.hash128(id.toString());
+            long[] positions = new long[hashes];
+            for (int i = 0; i < hashes; i++) {
+                positions[i] = Math.floorMod(hash[0] + i * hash[1], bits);
+            }
+            return positions;
+        }
+    }
+
+    /**
+     * 本地位数组，第i位对应Redis bitmap第i>>3个字节中的 0x80>>(i&7)
+     */
+    static class Snapshot {
+        private final Meta meta;
+        private final AtomicLongArray words;
+
+        Snapshot(Meta meta) {
+            this.meta = meta;
+            this.words = new AtomicLongArray((int) ((meta.bits + 63) >>> 6));
+        }
+
+        boolean containsAll(long[] positions) {
+            for (long position : positions) {
+                if ((words.get((int) (position >>> 6)) & (1L << position)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void setAll(long[] positions) {
+            for (long position : positions) {
+                or((int) (position >>> 6), 1L << position);
+            }
+        }
+
+        private void or(int index, long mask) {
+            if ((words.get(index) & mask) != mask) {
+                words.accumulateAndGet(index, mask, (a, b) -> a | b);
+            }
+        }
+
+        /**
+         * 把Redis中的位数组合并到本地，每8个字节对应一个long
+         */
+        void merge(byte[] bytes) {
+            int length = Math.min(bytes.length, words.length() << 3);
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] == 0) {
+                    continue;
+                }
+                long mask = 0;
+                for (int j = 0; j < 8; j++) {
+                    if ((bytes[i] & (0x80 >>> j)) != 0) {
+                        mask |= 1L << (((i & 7) << 3) + j);
+                    }
+                }
+                or(i >>> 3, mask);
+            }
+        }
+
+        byte[] toBytes() {
+            byte[] bytes = new byte[(int) ((meta.bits + 7) >>> 3)];
+            for (int index = 0; index < words.length(); index++) {
+                long word = words.get(index);
+                while (word != 0) {
+                    long position = ((long) index << 6) + Long.numberOfTrailingZeros(word);
+                    bytes[(int) (position >>> 3)] |= (byte) (0x80 >>> (position & 7));
+                    word &= word - 1;
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于ZSET的延迟队列，分数为任务的到期时间
+ * 取出任务时把分数推后一个租约时间，处理完成后调用ack删除，处理线程宕机时任务在租约到期后会被重新取出，
+ * 所以任务的处理必须是幂等的
+ */
+public class RedisDelayQueue {
+
+    private static final DefaultRedisScript<List> POLL_SCRIPT;
+    static {
+        POLL_SCRIPT = new DefaultRedisScript<>();
+        POLL_SCRIPT.setLocation(new ClassPathResource("delay_poll.lua"));
+        POLL_SCRIPT.setResultType(List.class);
+    }
+
+    private final String queueKey;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public RedisDelayQueue(String queueKey, StringRedisTemplate stringRedisTemplate) {
+        this.queueKey = queueKey;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 批量添加任务
+     * @param tasks 任务 -> 到期时间（毫秒时间戳）
+     */
+    public void addAll(Map<String, Long> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            tasks.forEach((task, deadline) -> stringConnection.zAdd(queueKey, deadline, task));
+            return null;
+        });
+    }
+
+    /**
+     * 取出到期的任务
+     * @param batchSize 最多取出的任务数
+     * @param leaseMillis 租约时间，超过该时间没有ack的任务会被重新取出
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> poll(int batchSize, long leaseMillis) {
+        List<String> tasks = stringRedisTemplate.execute(
+                POLL_SCRIPT,
+                Collections.singletonList(queueKey),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(batchSize), String.valueOf(leaseMillis)
+        );
+        return tasks == null ? Collections.emptyList() : tasks;
+    }
+
+    /**
+     * 确认任务已经处理完成
+     */
+    public void ack(Collection<String> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(queueKey, tasks.toArray());
+    }
+}
@@ -1,12 +1,23 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -19,25 +30,179 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final ExecutorService PREFETCH_EXECUTOR =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("id-prefetch-", true));
+
     private StringRedisTemplate stringRedisTemplate;
+    private IdWorkerProperties idWorkerProperties;
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    /**
+     * 号段模式下每个业务前缀的号段缓冲
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    /**
+     * 缓存当天的日期字符串，避免每次生成id都格式化日期
+     */
+    private volatile CachedDate cachedDate = new CachedDate(LocalDate.MIN, "");
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdWorkerProperties idWorkerProperties,
+                         SnowflakeIdWorker snowflakeIdWorker) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.idWorkerProperties = idWorkerProperties;
+        this.snowflakeIdWorker = snowflakeIdWorker;
     }
 
     public long nextId(String keyPrefix){
+        // 雪花算法模式，不访问Redis
+        if (idWorkerProperties.getMode() == IdWorkerProperties.Mode.SNOWFLAKE) {
+            return snowflakeIdWorker.nextId();
+        }
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         // 2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2.自增长
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String date = dateOf(now);
+        // 2.2.自增长，号段模式下从本地号段中获取
+        long count = idWorkerProperties.getLeaseStep() > 0
+                ? nextLeasedCount(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, date));
 
         // 3.拼接并返回
-        return timestamp << COUNT_BITS|count;
+        return highBits(now) | count;
+    }
+
+    /**
+     * id的时间戳部分，即时间戳左移序列号位数
+     * @param now 当前时间
+     * @return 时间戳左移32位
+     */
+    public long highBits(LocalDateTime now) {
+        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        return timestamp << COUNT_BITS;
+    }
+
+    /**
+     * 序列号的key，每天一个
+     * @param keyPrefix 业务前缀
+     * @param now 当前时间
+     * @return icr:业务前缀:yyyy:MM:dd
+     */
+    public String sequenceKey(String keyPrefix, LocalDateTime now) {
+        return sequenceKey(keyPrefix, dateOf(now));
+    }
+
+    private String sequenceKey(String keyPrefix, String date) {
+        return "icr:" + keyPrefix + ":" + date;
+    }
+
+    private String dateOf(LocalDateTime now) {
+        LocalDate today = now.toLocalDate();
+        CachedDate cached = cachedDate;
+        if (!cached.day.equals(today)) {
+            cached = new CachedDate(today, today.format(DATE_FORMATTER));
+            cachedDate = cached;
+        }
+        return cached.date;
+    }
+
+    /**
+     * 从本地号段中获取序列号，号段用完或者跨天时切换到下一个号段
+     * 号段通过INCRBY一次性预占，不同节点的号段互不重叠，所以id全局唯一
+     */
+    private long nextLeasedCount(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            // 号段只能在预占它的那一天使用，跨天后序列号从新的key开始，继续使用旧号段会和其它节点重复
+            if (segment != null && segment.date.equals(date)) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.max) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(buffer, date);
+                    }
+                    return count;
+                }
+            }
+            synchronized (buffer) {
+                if (buffer.current != segment) {
+                    // 其它线程已经切换了号段
+                    continue;
+                }
+                Segment next = buffer.next;
+                buffer.next = null;
+                if (next == null || !next.date.equals(date)) {
+                    // 预取的号段还没有就绪，同步预占
+                    next = lease(keyPrefix, date);
+                }
+                buffer.current = next;
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, String date) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        PREFETCH_EXECUTOR.submit(() -> {
+            try {
+                Segment next = lease(buffer.keyPrefix, date);
+                synchronized (buffer) {
+                    buffer.next = next;
+                }
+            } catch (Exception e) {
+                log.error("预取号段失败", e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    private Segment lease(String keyPrefix, String date) {
+        long step = idWorkerProperties.getLeaseStep();
+        // INCRBY icr:业务前缀:yyyy:MM:dd step，返回值是号段的最大值
+        Long max = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, date), step);
+        long min = max - step + 1;
+        long prefetchAt = min + (long) (step * idWorkerProperties.getPrefetchRatio());
+        return new Segment(date, min, max, Math.min(prefetchAt, max));
+    }
+
+    private static class SegmentBuffer {
+        private final String keyPrefix;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+        private volatile Segment current;
+        private Segment next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+    }
+
+    private static class Segment {
+        private final String date;
+        private final long max;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        private Segment(String date, long min, long max, long prefetchAt) {
+            this.date = date;
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(min);
+        }
+    }
+
+    private static class CachedDate {
+        private final LocalDate day;
+        private final String date;
+
+        private CachedDate(LocalDate day, String date) {
+            this.day = day;
+            this.date = date;
+        }
     }
 }
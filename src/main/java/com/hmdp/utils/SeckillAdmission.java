@@ -0,0 +1,222 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.AdmissionStatsDTO;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀准入控制
+ * 每个秒杀券一个令牌桶，速率按剩余库存计算，超出的请求在访问Redis下单之前就被拒绝。
+ * 先经过本地令牌桶，拿到本地令牌后再从Redis全局令牌桶批量领取令牌，大部分请求只在内存中判断
+ */
+@Component
+public class SeckillAdmission {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillStreamMonitor seckillStreamMonitor;
+
+    private final Map<Long, VoucherLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * 尝试放行一个秒杀请求
+     * @param segments 库存分段数，用于读取剩余库存
+     * @return 0表示放行，大于0表示被拒绝，值为建议的重试等待毫秒数
+     */
+    public long tryAdmit(Long voucherId, int segments) {
+        SeckillProperties.Admission config = seckillProperties.getAdmission();
+        if (!config.isEnabled()) {
+            return 0;
+        }
+        VoucherLimiter limiter = limiters.computeIfAbsent(voucherId, VoucherLimiter::new);
+        // 1.按剩余库存调整令牌生成速率
+        limiter.refresh(segments, config);
+        // 2.本地令牌桶
+        long wait = limiter.local.tryAcquire();
+        if (wait > 0) {
+            limiter.shedLocal.increment();
+            return retryAfter(wait, config);
+        }
+        // 3.全局令牌桶，优先使用之前批量领取的令牌
+        if (!limiter.takeCredit()) {
+            Long granted = stringRedisTemplate.execute(
+                    LIMIT_SCRIPT,
+                    Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    String.valueOf(limiter.rate), String.valueOf(limiter.capacity(config)),
+                    String.valueOf(Math.max(1, config.getGlobalBatch()))
+            );
+            if (granted == null || granted <= 0) {
+                limiter.shedGlobal.increment();
+                return retryAfter(granted == null ? 1000 : -granted, config);
+            }
+            // 3.1.自己用掉一个，剩余的留给后续请求
+            limiter.credits.addAndGet((int) (granted - 1));
+        }
+        limiter.admitted.increment();
+        return 0;
+    }
+
+    /**
+     * 准入统计
+     */
+    public AdmissionStatsDTO stats(Long voucherId) {
+        AdmissionStatsDTO stats = new AdmissionStatsDTO();
+        stats.setVoucherId(voucherId);
+        VoucherLimiter limiter = limiters.get(voucherId);
+        if (limiter == null) {
+            stats.setAdmitted(0L);
+            stats.setShedLocal(0L);
+            stats.setShedGlobal(0L);
+            return stats;
+        }
+        stats.setRate(limiter.rate);
+        stats.setThrottle(limiter.throttle);
+        stats.setAdmitted(limiter.admitted.sum());
+        stats.setShedLocal(limiter.shedLocal.sum());
+        stats.setShedGlobal(limiter.shedGlobal.sum());
+        return stats;
+    }
+
+    /**
+     * 秒杀结束清理后删除本地的令牌桶
+     */
+    public void forget(Long voucherId) {
+        limiters.remove(voucherId);
+    }
+
+    private long retryAfter(long wait, SeckillProperties.Admission config) {
+        return Math.max(1, Math.min(wait, config.getMaxRetryAfter().toMillis()));
+    }
+
+    private class VoucherLimiter {
+        private final Long voucherId;
+        private final TokenBucket local = new TokenBucket();
+        // 从全局令牌桶领取后还没用掉的令牌
+        private final AtomicInteger credits = new AtomicInteger();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder shedLocal = new LongAdder();
+        private final LongAdder shedGlobal = new LongAdder();
+        private volatile double rate;
+        private volatile double throttle = 1;
+        private volatile long refreshTime;
+
+        VoucherLimiter(Long voucherId) {
+            this.voucherId = voucherId;
+        }
+
+        /**
+         * 定期读取剩余库存，重新计算令牌生成速率
+         */
+        void refresh(int segments, SeckillProperties.Admission config) {
+            long now = System.currentTimeMillis();
+            long last = refreshTime;
+            if (now - last < config.getStockRefresh().toMillis()) {
+                return;
+            }
+            synchronized (this) {
+                // 其它线程已经刷新过
+                if (refreshTime != last) {
+                    return;
+                }
+                // 1.读取剩余库存
+                List<String> keys = new ArrayList<>();
+                if (segments > 1) {
+                    for (int i = 0; i < segments; i++) {
+                        keys.add(SeckillSegments.stockKey(voucherId, i));
+                    }
+                } else {
+                    keys.add(SECKILL_STOCK_KEY + voucherId);
+                }
+                long stock = 0;
+                List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+                if (values != null) {
+                    for (String value : values) {
+                        stock += value == null ? 0 : Math.max(0, Long.parseLong(value));
+                    }
+                }
+                // 2.按剩余库存计算速率，库存不足时仍保留最低速率，让请求拿到"库存不足"的结果
+                //   订单消息积压超过阈值时再按比例降速
+                throttle = seckillStreamMonitor.throttleOf(voucherId);
+                rate = Math.max(config.getMinRate(), stock * config.getStockMultiplier()) * throttle;
+                double localRate = rate * config.getLocalRatio();
+                local.resize(localRate, localRate * config.getBurstSeconds());
+                refreshTime = now;
+            }
+        }
+
+        long capacity(SeckillProperties.Admission config) {
+            return Math.max(1, (long) Math.ceil(rate * config.getBurstSeconds()));
+        }
+
+        boolean takeCredit() {
+            while (true) {
+                int current = credits.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (credits.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 本地令牌桶
+     */
+    private static class TokenBucket {
+        private double rate;
+        private double capacity;
+        private double tokens;
+        private long lastNanos = System.nanoTime();
+
+        synchronized void resize(double rate, double capacity) {
+            // 首次设置时桶是满的
+            if (this.capacity == 0) {
+                tokens = capacity;
+            }
+            this.rate = rate;
+            this.capacity = Math.max(1, capacity);
+            tokens = Math.min(tokens, this.capacity);
+        }
+
+        /**
+         * @return 0表示拿到令牌，否则为下一个令牌生成需要等待的毫秒数
+         */
+        synchronized long tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastNanos) * rate / 1_000_000_000L);
+            lastNanos = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 1000 / rate);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+/**
+ * 下单用户分片bitmap的key规则，与lua脚本中的规则一致
+ * 用户id按 2^shardBits 分片，分片key为 下单用户key:分片号，偏移量为用户id在分片内的位置，
+ * 用到的分片号记录在 下单用户key:shards 中，用于统计和清理。shardBits为0时下单用户仍保存在set中
+ */
+public class SeckillBuyers {
+
+    /**
+     * 用户所在的分片key，例如 seckill:order:10:3
+     */
+    public static String shardKey(String orderKey, long userId, int shardBits) {
+        return orderKey + ":" + Math.floorDiv(userId, 1L << shardBits);
+    }
+
+    /**
+     * 用户在分片中的偏移量
+     */
+    public static long offsetOf(long userId, int shardBits) {
+        return Math.floorMod(userId, 1L << shardBits);
+    }
+
+    /**
+     * 记录分片号的set，例如 seckill:order:10:shards
+     */
+    public static String shardsKey(String orderKey) {
+        return orderKey + ":shards";
+    }
+}
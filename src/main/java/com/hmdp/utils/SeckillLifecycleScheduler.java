@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀券的定时预热和清理
+ * 秒杀开始前：加载库存、元数据和lua脚本到Redis，并空跑秒杀路径预热JIT和连接池；
+ * 秒杀结束后：对账、保存归档统计，然后删除该秒杀券的库存、下单用户和元数据，Redis内存不会随活动数量增长。
+ * 每个节点都会执行，Redis中的数据通过归档标记只清理一次，本地缓存由各节点自己清理
+ */
+@Slf4j
+@Component
+public class SeckillLifecycleScheduler {
+
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    // 本节点已经预热过的秒杀券
+    private final Set<Long> warmedUp = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService lifecycleExecutor;
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Lifecycle config = seckillProperties.getLifecycle();
+        if (!config.isEnabled()) {
+            return;
+        }
+        lifecycleExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("seckill-lifecycle-", true));
+        long interval = config.getInterval().toMillis();
+        lifecycleExecutor.scheduleWithFixedDelay(this::run, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (lifecycleExecutor != null) {
+            lifecycleExecutor.shutdownNow();
+        }
+    }
+
+    private void run() {
+        try {
+            warmUp();
+            tearDown();
+        } catch (Exception e) {
+            log.error("秒杀券预热和清理异常", e);
+        }
+    }
+
+    /**
+     * 预热即将开始的秒杀券
+     */
+    private void warmUp() {
+        SeckillProperties.Lifecycle config = seckillProperties.getLifecycle();
+        LocalDateTime now = LocalDateTime.now();
+        // 1.查询warm-up-ahead内即将开始的秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("begin_time", now)
+                .le("begin_time", now.plus(config.getWarmUpAhead()))
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            if (warmedUp.contains(voucherId)) {
+                continue;
+            }
+            try {
+                // 2.加载库存和元数据，已存在的库存不会被覆盖
+                voucherService.preloadSeckillVoucher(voucher);
+                // 3.加载lua脚本，预热JIT和连接池
+                long begin = System.currentTimeMillis();
+                voucherOrderService.warmUpSeckill(voucherId);
+                warmedUp.add(voucherId);
+                log.info("秒杀券{}预热完成，耗时{}ms，开始时间：{}", voucherId, System.currentTimeMillis() - begin, voucher.getBeginTime());
+            } catch (Exception e) {
+                log.error("秒杀券" + voucherId + "预热失败", e);
+            }
+        }
+    }
+
+    /**
+     * 清理已经结束的秒杀券
+     */
+    private void tearDown() {
+        SeckillProperties.Lifecycle config = seckillProperties.getLifecycle();
+        LocalDateTime now = LocalDateTime.now();
+        // 1.查询结束超过archive-delay的秒杀券，向前查找archive-lookback，覆盖停机期间结束的秒杀券
+        LocalDateTime deadline = now.minus(config.getArchiveDelay());
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .select("voucher_id")
+                .gt("end_time", deadline.minus(config.getArchiveLookback()))
+                .le("end_time", deadline)
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            try {
+                // 2.归档并删除Redis中的数据，其它节点已经处理过的返回false
+                if (voucherService.archiveSeckillVoucher(voucherId)) {
+                    log.info("秒杀券{}已归档", voucherId);
+                }
+                // 3.清理本地缓存
+                voucherOrderService.evictSeckillVoucher(voucherId);
+                warmedUp.remove(voucherId);
+            } catch (Exception e) {
+                log.error("秒杀券" + voucherId + "清理失败", e);
+            }
+        }
+    }
+}
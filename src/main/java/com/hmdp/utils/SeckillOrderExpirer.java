@@ -0,0 +1,212 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_EXPIRE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTORED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 未支付订单超时取消
+ * 订单落库后按支付截止时间放入延迟队列，到期后批量取消仍未支付的订单，回补数据库和Redis的库存。
+ * 用户仍保留在下单用户集合中，不能重新抢购：已取消的订单还占用(user_id, voucher_id)唯一索引，重新抢购的订单无法落库
+ */
+@Slf4j
+@Component
+public class SeckillOrderExpirer {
+
+    private static final DefaultRedisScript<Long> RESTORE_SCRIPT;
+    static {
+        RESTORE_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_SCRIPT.setLocation(new ClassPathResource("seckill_restore.lua"));
+        RESTORE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillStockSync seckillStockSync;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    // 与订单服务互相依赖，延迟注入
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    private RedisDelayQueue delayQueue;
+    private ExecutorService expireExecutor;
+
+    @PostConstruct
+    private void init() {
+        delayQueue = new RedisDelayQueue(SECKILL_EXPIRE_KEY, stringRedisTemplate);
+        SeckillProperties.Expire config = seckillProperties.getExpire();
+        if (!config.isEnabled()) {
+            return;
+        }
+        int workers = Math.max(1, config.getWorkers());
+        expireExecutor = Executors.newFixedThreadPool(workers, ThreadUtil.newNamedThreadFactory("seckill-expire-", true));
+        for (int i = 0; i < workers; i++) {
+            expireExecutor.submit(new OrderExpireHandler());
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (expireExecutor != null) {
+            expireExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 事务提交后把订单放入延迟队列，到期时间为当前时间加支付时限
+     */
+    public void scheduleAfterCommit(List<VoucherOrder> voucherOrders) {
+        if (!seckillProperties.getExpire().isEnabled() || voucherOrders.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    schedule(voucherOrders);
+                }
+            });
+            return;
+        }
+        schedule(voucherOrders);
+    }
+
+    private void schedule(List<VoucherOrder> voucherOrders) {
+        long deadline = System.currentTimeMillis() + seckillProperties.getExpire().getPayTimeout().toMillis();
+        Map<String, Long> tasks = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            tasks.put(voucherOrder.getId() + ":" + voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), deadline);
+        }
+        try {
+            delayQueue.addAll(tasks);
+        } catch (Exception e) {
+            log.error("订单放入延迟队列失败", e);
+        }
+    }
+
+    private class OrderExpireHandler implements Runnable {
+        @Override
+        public void run() {
+            SeckillProperties.Expire config = seckillProperties.getExpire();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    // 1.取出一批到期的订单
+                    List<String> tasks = delayQueue.poll(config.getBatchSize(), config.getLease().toMillis());
+                    if (tasks.isEmpty()) {
+                        Thread.sleep(config.getPollInterval().toMillis());
+                        continue;
+                    }
+                    // 2.取消并回补库存
+                    handleExpiredOrders(tasks);
+                    // 3.确认
+                    delayQueue.ack(tasks);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    // 没有确认的订单在租约到期后会被重新取出
+                    log.error("处理超时订单异常", e);
+                    ThreadUtil.sleep(config.getPollInterval().toMillis());
+                }
+            }
+        }
+    }
+
+    private void handleExpiredOrders(List<String> tasks) {
+        SeckillProperties.Expire config = seckillProperties.getExpire();
+        // 1.解析订单 orderId:userId:voucherId
+        List<VoucherOrder> voucherOrders = new ArrayList<>(tasks.size());
+        for (String task : tasks) {
+            String[] parts = task.split(":");
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(Long.valueOf(parts[0]));
+            voucherOrder.setUserId(Long.valueOf(parts[1]));
+            voucherOrder.setVoucherId(Long.valueOf(parts[2]));
+            voucherOrders.add(voucherOrder);
+        }
+        // 2.批量取消数据库中仍未支付的订单，回补数据库库存
+        List<VoucherOrder> cancelledOrders = voucherOrderService.cancelUnpaidOrders(voucherOrders);
+        // 3.回补Redis库存，脚本记录已回补的订单id，保证同一订单只回补一次
+        Set<Long> restoredVouchers = new HashSet<>();
+        Map<Long, Long> archivedCounts = new HashMap<>();
+        String restoredTtl = String.valueOf(config.getRestoredTtl().getSeconds());
+        for (VoucherOrder voucherOrder : cancelledOrders) {
+            Long voucherId = voucherOrder.getVoucherId();
+            Object savedSegments = stringRedisTemplate.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "segments");
+            int segments = savedSegments == null ? 1 : Integer.parseInt(savedSegments.toString());
+            List<String> keys;
+            if (segments > 1) {
+                // 分段库存时回补到用户所属的分段，两个key位于同一个slot
+                int home = SeckillSegments.homeSegment(voucherOrder.getUserId(), segments);
+                keys = Arrays.asList(SeckillSegments.stockKey(voucherId, home), SeckillSegments.restoredKey(voucherId, home));
+            } else {
+                keys = Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_RESTORED_KEY + voucherId);
+            }
+            Long restored = stringRedisTemplate.execute(RESTORE_SCRIPT, keys,
+                    voucherOrder.getId().toString(), restoredTtl);
+            if (restored == null || restored == 0) {
+                continue;
+            }
+            if (restored == 1) {
+                restoredVouchers.add(voucherId);
+            } else {
+                // 秒杀已经清理，Redis中没有库存
+                archivedCounts.merge(voucherId, 1L, Long::sum);
+            }
+        }
+        // 4.库存回补后清除售罄标记，以Redis库存为准时标记需要写回
+        for (Long voucherId : restoredVouchers) {
+            soldOutRegistry.markAvailable(voucherId);
+            if (seckillProperties.getStock().isWriteBehind()) {
+                seckillStockSync.markDirty(voucherId);
+            }
+        }
+        // 5.以Redis库存为准时，取消订单没有回补数据库库存；秒杀已经清理的，库存直接回补到数据库
+        //   否则数据库库存已经在取消订单时回补
+        if (seckillProperties.getStock().isWriteBehind()) {
+            archivedCounts.forEach((voucherId, k) -> seckillVoucherService.update()
+                    .setSql("stock = stock + " + k)
+                    .eq("voucher_id", voucherId)
+                    .update());
+        }
+        if (!cancelledOrders.isEmpty()) {
+            log.info("取消超时未支付订单{}个，回补Redis库存的优惠券：{}，回补数据库库存的优惠券：{}",
+                    cancelledOrders.size(), restoredVouchers, archivedCounts.keySet());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.date.DatePattern;
+import cn.hutool.core.date.DateUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * 秒杀订单本地日志（WAL）
+ * lua脚本下单成功后把订单追加到本地的内存映射文件中，后台线程定期批量fsync（组提交），
+ * 请求线程只需要等待所在批次刷盘。Redis主从切换丢失了stream中的消息时，可以用日志把订单重新投递到stream或者直接写入数据库。
+ * 每条记录36字节：crc32(4) + 订单id(8) + 用户id(8) + 优惠券id(8) + 时间戳(8)，全0表示文件结束
+ */
+@Slf4j
+@Component
+public class SeckillOrderJournal {
+
+    private static final int PAYLOAD_SIZE = 32;
+    private static final int RECORD_SIZE = 4 + PAYLOAD_SIZE;
+    private static final String FILE_PREFIX = "seckill-";
+    private static final String FILE_SUFFIX = ".journal";
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private final Object flushLock = new Object();
+    private File currentFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    // 已写入的记录数，跨文件递增
+    private long written;
+    // 已刷盘的记录数
+    private long flushed;
+    private volatile boolean running;
+    private ExecutorService flushExecutor;
+
+    @PostConstruct
+    private void init() throws IOException {
+        SeckillProperties.Journal config = seckillProperties.getJournal();
+        if (!config.isEnabled()) {
+            return;
+        }
+        File dir = new File(config.getDir());
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建订单日志目录：" + dir.getAbsolutePath());
+        }
+        // 每次启动写入新文件，旧文件保留到replay或者过期
+        synchronized (this) {
+            roll();
+        }
+        running = true;
+        flushExecutor = Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("seckill-journal-", true));
+        flushExecutor.submit(this::flushLoop);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        flushExecutor.shutdownNow();
+        synchronized (this) {
+            buffer.force();
+            closeQuietly();
+        }
+    }
+
+    /**
+     * 追加一条订单记录，开启sync时等待记录所在的批次刷盘
+     */
+    public void append(long orderId, long userId, long voucherId) {
+        if (!running) {
+            return;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_SIZE);
+        payload.putLong(orderId).putLong(userId).putLong(voucherId).putLong(System.currentTimeMillis());
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        long seq;
+        synchronized (this) {
+            try {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    roll();
+                }
+            } catch (IOException e) {
+                log.error("订单日志切换文件失败", e);
+                return;
+            }
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload.array());
+            seq = ++written;
+        }
+        if (seckillProperties.getJournal().isSync()) {
+            awaitFlushed(seq);
+        }
+    }
+
+    /**
+     * 读取所有日志文件中的订单，按订单id去重
+     */
+    public List<VoucherOrder> readAll() throws IOException {
+        File[] files = journalFiles();
+        Map<Long, VoucherOrder> orders = new LinkedHashMap<>();
+        for (File file : files) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel fileChannel = raf.getChannel()) {
+                MappedByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+                byte[] payload = new byte[PAYLOAD_SIZE];
+                while (mapped.remaining() >= RECORD_SIZE) {
+                    int checksum = mapped.getInt();
+                    mapped.get(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    // 全0是文件结尾，校验失败是宕机时没有写完的记录
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    ByteBuffer record = ByteBuffer.wrap(payload);
+                    VoucherOrder voucherOrder = new VoucherOrder();
+                    voucherOrder.setId(record.getLong());
+                    voucherOrder.setUserId(record.getLong());
+                    voucherOrder.setVoucherId(record.getLong());
+                    if (voucherOrder.getId() == 0) {
+                        break;
+                    }
+                    orders.putIfAbsent(voucherOrder.getId(), voucherOrder);
+                }
+            }
+        }
+        return new ArrayList<>(orders.values());
+    }
+
+    /**
+     * 切换到新文件，旧文件刷盘后关闭
+     * 调用方需要持有当前对象的锁
+     */
+    private void roll() throws IOException {
+        SeckillProperties.Journal config = seckillProperties.getJournal();
+        if (buffer != null) {
+            buffer.force();
+            closeQuietly();
+            synchronized (flushLock) {
+                flushed = written;
+                flushLock.notifyAll();
+            }
+        }
+        String name = FILE_PREFIX + DateUtil.format(new Date(), DatePattern.PURE_DATETIME_MS_PATTERN);
+        File file = new File(config.getDir(), name + FILE_SUFFIX);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(config.getDir(), name + "-" + i + FILE_SUFFIX);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        // 映射时文件会扩展到指定大小，内容全0
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, config.getSegmentSize().toBytes());
+        currentFile = file;
+        deleteExpiredFiles();
+    }
+
+    /**
+     * 组提交：每个间隔把这段时间写入的记录一次性刷盘，唤醒等待的请求线程
+     */
+    private void flushLoop() {
+        long interval = Math.max(1, seckillProperties.getJournal().getGroupCommitInterval().toMillis());
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                long target;
+                MappedByteBuffer current;
+                synchronized (this) {
+                    target = written;
+                    current = buffer;
+                }
+                if (target > flushed) {
+                    current.force();
+                    synchronized (flushLock) {
+                        flushed = Math.max(flushed, target);
+                        flushLock.notifyAll();
+                    }
+                }
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                log.error("订单日志刷盘异常", e);
+            }
+        }
+    }
+
+    private void awaitFlushed(long seq) {
+        long deadline = System.currentTimeMillis() + seckillProperties.getJournal().getSyncTimeout().toMillis();
+        synchronized (flushLock) {
+            while (flushed < seq) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    log.warn("等待订单日志刷盘超时");
+                    return;
+                }
+                try {
+                    flushLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private File[] journalFiles() {
+        File[] files = new File(seckillProperties.getJournal().getDir())
+                .listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * 删除超过保留时间的旧文件
+     */
+    private void deleteExpiredFiles() {
+        long expireTime = System.currentTimeMillis() - seckillProperties.getJournal().getRetention().toMillis();
+        for (File file : journalFiles()) {
+            if (!file.equals(currentFile) && file.lastModified() < expireTime && !file.delete()) {
+                log.warn("删除过期订单日志失败：{}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("关闭订单日志失败", e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderResultDTO;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESULT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESULT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESULT_TTL;
+
+/**
+ * 秒杀订单的异步处理结果
+ * 消费者处理完订单后写入 seckill:result:{orderId} = 状态:用户id，并通过发布订阅通知等待结果的请求
+ */
+@Slf4j
+@Component
+public class SeckillOrderResults implements MessageListener {
+
+    public static final int PROCESSING = 0;
+    public static final int SUCCESS = 1;
+    public static final int DUPLICATE = 2;
+    public static final int SOLD_OUT = 3;
+    public static final int FAILED = 4;
+
+    /**
+     * 长轮询的最长等待时间
+     */
+    private static final long MAX_TIMEOUT = 30000L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    // 订单id -> 本节点上等待该订单结果的请求
+    private final Map<Long, Queue<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    public SeckillOrderResults(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_RESULT_CHANNEL));
+    }
+
+    /**
+     * 记录订单处理结果，存在事务时在事务提交后记录，避免回滚后结果不一致
+     */
+    public void recordAfterCommit(List<VoucherOrder> voucherOrders, int status) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    record(voucherOrders, status);
+                }
+            });
+            return;
+        }
+        record(voucherOrders, status);
+    }
+
+    /**
+     * 通过管道批量写入结果，并用一条消息通知所有节点
+     */
+    public void record(List<VoucherOrder> voucherOrders, int status) {
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                StringBuilder message = new StringBuilder();
+                for (VoucherOrder voucherOrder : voucherOrders) {
+                    String value = status + ":" + voucherOrder.getUserId();
+                    conn.setEx(SECKILL_RESULT_KEY + voucherOrder.getId(), SECKILL_RESULT_TTL, value);
+                    message.append(voucherOrder.getId()).append(':').append(value).append(',');
+                }
+                conn.publish(SECKILL_RESULT_CHANNEL, message.toString());
+                return null;
+            });
+        } catch (Exception e) {
+            // 结果只用于查询，写入失败不影响下单
+            log.error("记录订单结果失败", e);
+        }
+    }
+
+    /**
+     * 查询订单结果，结果未出来时最多等待timeout毫秒
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeout) {
+        timeout = Math.max(0, Math.min(timeout, MAX_TIMEOUT));
+        OrderResultDTO processing = toResult(orderId, PROCESSING);
+        DeferredResult<Result> deferredResult = new DeferredResult<>(timeout, Result.ok(processing));
+        // 1.查询Redis中的结果
+        OrderResultDTO current = query(orderId, userId);
+        if (current.getStatus() != PROCESSING || timeout == 0) {
+            deferredResult.setResult(Result.ok(current));
+            return deferredResult;
+        }
+        // 2.登记等待，结果写入后由onMessage唤醒
+        Waiter waiter = new Waiter(userId, deferredResult);
+        Queue<Waiter> queue = waiters.computeIfAbsent(orderId, id -> new ConcurrentLinkedQueue<>());
+        queue.add(waiter);
+        deferredResult.onCompletion(() -> {
+            queue.remove(waiter);
+            if (queue.isEmpty()) {
+                waiters.remove(orderId, queue);
+            }
+        });
+        // 3.登记期间结果可能已经写入，再查一次
+        current = query(orderId, userId);
+        if (current.getStatus() != PROCESSING) {
+            deferredResult.setResult(Result.ok(current));
+        }
+        return deferredResult;
+    }
+
+    /**
+     * 查询订单结果，不是本人的订单当作处理中
+     */
+    public OrderResultDTO query(Long orderId, Long userId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_RESULT_KEY + orderId);
+        if (StrUtil.isBlank(value)) {
+            return toResult(orderId, PROCESSING);
+        }
+        String[] parts = value.split(":");
+        if (!parts[1].equals(String.valueOf(userId))) {
+            return toResult(orderId, PROCESSING);
+        }
+        return toResult(orderId, Integer.parseInt(parts[0]));
+    }
+
+    /**
+     * 批量查询订单的处理状态，不校验用户，没有结果的为处理中
+     */
+    public List<Integer> statuses(List<Long> orderIds) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(
+                orderIds.stream().map(id -> SECKILL_RESULT_KEY + id).collect(Collectors.toList()));
+        List<Integer> statuses = new ArrayList<>(orderIds.size());
+        for (int i = 0; i < orderIds.size(); i++) {
+            String value = values == null ? null : values.get(i);
+            statuses.add(StrUtil.isBlank(value) ? PROCESSING : Integer.parseInt(value.split(":")[0]));
+        }
+        return statuses;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        // 订单id:状态:用户id,订单id:状态:用户id,...
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String entry : body.split(",")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            String[] parts = entry.split(":");
+            Queue<Waiter> queue = waiters.get(Long.valueOf(parts[0]));
+            if (queue == null) {
+                continue;
+            }
+            OrderResultDTO result = toResult(Long.valueOf(parts[0]), Integer.parseInt(parts[1]));
+            for (Waiter waiter : queue) {
+                if (parts[2].equals(String.valueOf(waiter.userId))) {
+                    waiter.deferredResult.setResult(Result.ok(result));
+                }
+            }
+        }
+    }
+
+    private OrderResultDTO toResult(Long orderId, int status) {
+        String msg;
+        switch (status) {
+            case SUCCESS:
+                msg = "下单成功";
+                break;
+            case DUPLICATE:
+                msg = "不能重复下单";
+                break;
+            case SOLD_OUT:
+                msg = "库存不足";
+                break;
+            case FAILED:
+                msg = "下单失败";
+                break;
+            default:
+                msg = "处理中";
+        }
+        return new OrderResultDTO(orderId, status, msg);
+    }
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> deferredResult;
+
+        private Waiter(Long userId, DeferredResult<Result> deferredResult) {
+            this.userId = userId;
+            this.deferredResult = deferredResult;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_PENDING_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTORED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 分段库存的key规则
+ * 同一分段的库存key和下单用户key使用相同的hash tag，保证在集群中位于同一个slot，
+ * 不同分段的hash tag不同，会分散到不同的slot
+ */
+public class SeckillSegments {
+
+    /**
+     * 分段库存key，例如 seckill:stock:{10:3}
+     */
+    public static String stockKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 分段下单用户key，例如 seckill:order:{10:3}
+     */
+    public static String orderKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 分段未发送消息的订单key，例如 seckill:pending:{10:3}，field为订单id，value为 用户id:是否已扣减库存:时间戳
+     */
+    public static String pendingKey(Long voucherId, int segment) {
+        return SECKILL_PENDING_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 分段已回补订单key，例如 seckill:restored:{10:3}
+     */
+    public static String restoredKey(Long voucherId, int segment) {
+        return SECKILL_RESTORED_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 用户所属的分段，一人一单只在该分段上判断
+     */
+    public static int homeSegment(Long userId, int segments) {
+        return Math.floorMod(userId.hashCode(), segments);
+    }
+
+    /**
+     * 把库存平均拆分到各个分段，余数分给前面的分段
+     */
+    public static int[] split(int stock, int segments) {
+        int[] parts = new int[segments];
+        for (int i = 0; i < segments; i++) {
+            parts[i] = stock / segments + (i < stock % segments ? 1 : 0);
+        }
+        return parts;
+    }
+}
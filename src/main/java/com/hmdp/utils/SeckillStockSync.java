@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redis库存和数据库库存的同步
+ * 以Redis库存为准（write-behind）时，消费者落库只标记优惠券，由这里定期把Redis库存聚合写回tb_seckill_voucher；
+ * 另外定期对账进行中的秒杀券，发现偏差时记录日志，修复通过接口手动触发
+ */
+@Slf4j
+@Component
+public class SeckillStockSync {
+
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    // 有订单落库、需要写回库存的优惠券
+    private final Set<Long> dirtyVouchers = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService stockSyncExecutor;
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Stock config = seckillProperties.getStock();
+        stockSyncExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("seckill-stock-sync-", true));
+        if (config.isWriteBehind()) {
+            long interval = config.getFlushInterval().toMillis();
+            stockSyncExecutor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if (!config.getReconcileInterval().isZero()) {
+            long interval = config.getReconcileInterval().toMillis();
+            stockSyncExecutor.scheduleWithFixedDelay(this::reconcile, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        stockSyncExecutor.shutdownNow();
+        // 停机前把还没写回的库存写回去
+        if (seckillProperties.getStock().isWriteBehind()) {
+            flush();
+        }
+    }
+
+    /**
+     * 标记优惠券有订单落库，下次写回时更新数据库库存
+     */
+    public void markDirty(Long voucherId) {
+        dirtyVouchers.add(voucherId);
+    }
+
+    /**
+     * 把有变化的优惠券的Redis库存写回数据库，每个优惠券一条update
+     */
+    private void flush() {
+        List<Long> voucherIds = new ArrayList<>(dirtyVouchers);
+        for (Long voucherId : voucherIds) {
+            // 先移除再写回，写回期间新落库的订单会重新标记
+            dirtyVouchers.remove(voucherId);
+            try {
+                voucherService.flushSeckillStock(voucherId);
+            } catch (Exception e) {
+                log.error("写回库存失败，优惠券：" + voucherId, e);
+                dirtyVouchers.add(voucherId);
+            }
+        }
+    }
+
+    /**
+     * 对账进行中的秒杀券，包括刚结束还没清理的
+     */
+    private void reconcile() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .select("voucher_id")
+                    .le("begin_time", now)
+                    .gt("end_time", now.minus(seckillProperties.getLifecycle().getArchiveDelay()))
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                voucherService.reconcileSeckillStock(voucher.getVoucherId(), false);
+            }
+        } catch (Exception e) {
+            log.error("库存对账异常", e);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.StreamBacklogDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+
+/**
+ * 订单消息队列的积压监控
+ * 定期采样每个分区的积压（未投递数、未确认数、最早未确认消息的等待时间），裁剪所有消费者组都已确认的消息，
+ * 积压超过阈值时降低准入控制的速率，让积压不再继续增长；同时删除死信队列中超过保留时间的消息
+ */
+@Slf4j
+@Component
+public class SeckillStreamMonitor {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    // stream -> 最近一次采样
+    private final Map<String, StreamBacklogDTO> samples = new ConcurrentHashMap<>();
+    // Redis是否支持XTRIM MINID（6.2+），第一次裁剪时查询
+    private volatile Boolean minIdSupported;
+    private ScheduledExecutorService monitorExecutor;
+
+    @PostConstruct
+    private void init() {
+        long interval = seckillProperties.getBacklog().getMonitorInterval().toMillis();
+        if (interval <= 0) {
+            return;
+        }
+        monitorExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("seckill-stream-monitor-", true));
+        monitorExecutor.scheduleWithFixedDelay(this::sampleAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (monitorExecutor != null) {
+            monitorExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 优惠券所在分区的准入速率比例，没有积压时为1
+     */
+    public double throttleOf(Long voucherId) {
+        String streamKey = SeckillStreams.streamKey(seckillProperties.getOrder().getPartitions(), voucherId);
+        StreamBacklogDTO sample = samples.get(streamKey);
+        return sample == null ? 1 : sample.getThrottle();
+    }
+
+    /**
+     * 所有分区最近一次的采样结果
+     */
+    public List<StreamBacklogDTO> stats() {
+        List<StreamBacklogDTO> stats = new ArrayList<>();
+        for (String streamKey : SeckillStreams.streamKeys(seckillProperties.getOrder().getPartitions())) {
+            StreamBacklogDTO sample = samples.get(streamKey);
+            if (sample != null) {
+                stats.add(sample);
+            }
+        }
+        return stats;
+    }
+
+    private void sampleAll() {
+        for (String streamKey : SeckillStreams.streamKeys(seckillProperties.getOrder().getPartitions())) {
+            try {
+                sample(streamKey);
+            } catch (Exception e) {
+                log.error("采样订单消息积压异常：" + streamKey, e);
+            }
+        }
+        try {
+            trimDeadLetters();
+        } catch (Exception e) {
+            log.error("裁剪死信队列异常", e);
+        }
+    }
+
+    private void sample(String streamKey) {
+        SeckillProperties.Backlog config = seckillProperties.getBacklog();
+        long now = System.currentTimeMillis();
+        // 1.查询stream和消费者组 XINFO STREAM / XINFO GROUPS
+        StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(streamKey);
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        StreamBacklogDTO sample = new StreamBacklogDTO();
+        sample.setStream(streamKey);
+        sample.setLength(info.streamLength());
+        sample.setLag(0L);
+        sample.setPending(0L);
+        sample.setOldestPendingAge(0L);
+        sample.setSampleTime(now);
+        // 2.计算积压，裁剪位置取所有消费者组中最早的未确认消息或最后投递的消息
+        String trimId = null;
+        boolean allAcked = true;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            String boundary = group.lastDeliveredId();
+            long lag = lagOf(streamKey, group, info.lastGeneratedId());
+            long pending = group.pendingCount();
+            if (pending > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, group.groupName());
+                if (summary != null && summary.minMessageId() != null) {
+                    boundary = summary.minMessageId();
+                }
+            }
+            allAcked = allAcked && lag == 0 && pending == 0;
+            trimId = trimId == null || compareIds(boundary, trimId) < 0 ? boundary : trimId;
+            if (SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                sample.setLag(lag);
+                sample.setPending(pending);
+                if (pending > 0) {
+                    sample.setOldestPendingAge(Math.max(0, now - timestampOf(boundary)));
+                }
+            }
+        }
+        // 3.裁剪已确认的消息
+        sample.setTrimmed(trim(streamKey, trimId, allAcked, now));
+        // 4.积压超过阈值时按比例降速
+        long backlog = sample.getLag() + sample.getPending();
+        double throttle = 1;
+        if (config.getLagThreshold() > 0 && backlog > config.getLagThreshold()) {
+            throttle = Math.max(config.getMinThrottle(), (double) config.getLagThreshold() / backlog);
+        }
+        sample.setThrottle(throttle);
+        StreamBacklogDTO last = samples.put(streamKey, sample);
+        boolean throttled = last != null && last.getThrottle() < 1;
+        if (throttle < 1 && !throttled) {
+            log.warn("订单消息积压{}条，超过阈值，准入速率降为{}：{}", backlog, throttle, streamKey);
+        } else if (throttle == 1 && throttled) {
+            log.warn("订单消息积压恢复到{}条，准入速率恢复：{}", backlog, streamKey);
+        }
+    }
+
+    /**
+     * 消费者组还没有读取的消息数
+     * Redis 7以上XINFO GROUPS直接返回lag，低版本从最后投递的位置向后数，最多数到降速阈值
+     */
+    private long lagOf(String streamKey, StreamInfo.XInfoGroup group, String lastGeneratedId) {
+        Object lag = group.getRaw().get("lag");
+        if (lag instanceof Long) {
+            return (Long) lag;
+        }
+        String lastDeliveredId = group.lastDeliveredId();
+        if (lastDeliveredId.equals(lastGeneratedId)) {
+            return 0;
+        }
+        long limit = Math.max(1000, seckillProperties.getBacklog().getLagThreshold() + 1);
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                streamKey,
+                Range.rightUnbounded(Range.Bound.inclusive(lastDeliveredId)),
+                Limit.limit().count((int) Math.min(Integer.MAX_VALUE, limit + 1)));
+        if (records == null || records.isEmpty()) {
+            return 0;
+        }
+        boolean includesDelivered = records.get(0).getId().getValue().equals(lastDeliveredId);
+        return records.size() - (includesDelivered ? 1 : 0);
+    }
+
+    /**
+     * 裁剪消息，都使用近似裁剪（~），Redis只删除完整的节点，开销很小
+     * @return 删除的消息数
+     */
+    private long trim(String streamKey, String trimId, boolean allAcked, long now) {
+        SeckillProperties.Backlog config = seckillProperties.getBacklog();
+        Long trimmed;
+        if (config.getTrimStrategy() == SeckillProperties.TrimStrategy.MINID && minIdSupported()) {
+            if (trimId == null) {
+                return 0;
+            }
+            // 1.已确认的消息保留一段时间，XTRIM stream.orders MINID ~ id
+            String retainId = (now - config.getTrimRetain().toMillis()) + "-0";
+            String minId = compareIds(trimId, retainId) < 0 ? trimId : retainId;
+            if (timestampOf(minId) <= 0) {
+                return 0;
+            }
+            trimmed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long)
+                    ((StringRedisConnection) connection).execute("XTRIM", streamKey, "MINID", "~", minId));
+        } else {
+            // 2.低版本不支持MINID，按长度裁剪无法区分消息是否已确认，只在全部确认后裁剪 XTRIM stream.orders MAXLEN ~ n
+            if (!allAcked) {
+                return 0;
+            }
+            trimmed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long)
+                    ((StringRedisConnection) connection).execute("XTRIM", streamKey, "MAXLEN", "~", String.valueOf(config.getMaxLen())));
+        }
+        return trimmed == null ? 0 : trimmed;
+    }
+
+    /**
+     * 删除死信队列中超过保留时间的消息，死信队列没有消费者组，按消息id中的时间戳判断
+     */
+    private void trimDeadLetters() {
+        SeckillProperties.Recovery config = seckillProperties.getRecovery();
+        String streamKey = config.getDeadLetterStream();
+        long minTimestamp = System.currentTimeMillis() - config.getDeadLetterRetain().toMillis();
+        if (minIdSupported()) {
+            // 1.XTRIM stream.orders.dlq MINID ~ id
+            String minId = minTimestamp + "-0";
+            stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long)
+                    ((StringRedisConnection) connection).execute("XTRIM", streamKey, "MINID", "~", minId));
+            return;
+        }
+        // 2.低版本从最早的消息开始，每次最多删除1000条 XRANGE stream.orders.dlq - + COUNT 1000 / XDEL
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(streamKey, Range.unbounded(), Limit.limit().count(1000));
+        if (records == null) {
+            return;
+        }
+        RecordId[] expiredIds = records.stream()
+                .map(MapRecord::getId)
+                .filter(id -> id.getTimestamp() < minTimestamp)
+                .toArray(RecordId[]::new);
+        if (expiredIds.length > 0) {
+            stringRedisTemplate.opsForStream().delete(streamKey, expiredIds);
+        }
+    }
+
+    /**
+     * 查询Redis版本，6.2以下不支持XTRIM MINID，按MAXLEN裁剪
+     */
+    private boolean minIdSupported() {
+        Boolean supported = minIdSupported;
+        if (supported != null) {
+            return supported;
+        }
+        Properties info = stringRedisTemplate.execute((RedisCallback<Properties>) connection ->
+                connection.serverCommands().info("server"));
+        // 集群模式下属性名带有节点地址前缀，取版本最低的节点
+        String version = null;
+        if (info != null) {
+            for (String name : info.stringPropertyNames()) {
+                if (name.endsWith("redis_version")) {
+                    String nodeVersion = info.getProperty(name);
+                    version = version == null || versionOf(nodeVersion) < versionOf(version) ? nodeVersion : version;
+                }
+            }
+        }
+        supported = version != null && versionOf(version) >= 602;
+        if (!supported) {
+            log.warn("Redis版本{}不支持XTRIM MINID（需要6.2+），按MAXLEN裁剪订单消息", version);
+        }
+        minIdSupported = supported;
+        return supported;
+    }
+
+    /**
+     * 主版本号 * 100 + 次版本号，例如6.2.7为602
+     */
+    private static int versionOf(String version) {
+        String[] parts = version.split("\\.");
+        return Integer.parseInt(parts[0]) * 100 + (parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+    }
+
+    private static long timestampOf(String id) {
+        int index = id.indexOf('-');
+        return Long.parseLong(index < 0 ? id : id.substring(0, index));
+    }
+
+    private static int compareIds(String a, String b) {
+        int c = Long.compare(timestampOf(a), timestampOf(b));
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(sequenceOf(a), sequenceOf(b));
+    }
+
+    private static long sequenceOf(String id) {
+        int index = id.indexOf('-');
+        return index < 0 ? 0 : Long.parseLong(id.substring(index + 1));
+    }
+}
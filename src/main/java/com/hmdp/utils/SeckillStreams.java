@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * 秒杀订单消息队列的分区规则
+ */
+public class SeckillStreams {
+
+    /**
+     * 根据优惠券id计算订单应该写入的stream
+     * @param partitions 分区数，为1时只有stream.orders一个队列
+     * @param voucherId 优惠券id
+     * @return stream的key
+     */
+    public static String streamKey(int partitions, Long voucherId) {
+        if (partitions <= 1) {
+            return SECKILL_ORDER_STREAM;
+        }
+        return SECKILL_ORDER_STREAM + ":" + Math.floorMod(voucherId.hashCode(), partitions);
+    }
+
+    /**
+     * 获取所有分区的stream
+     * @param partitions 分区数
+     * @return stream的key列表
+     */
+    public static List<String> streamKeys(int partitions) {
+        List<String> keys = new ArrayList<>();
+        if (partitions <= 1) {
+            keys.add(SECKILL_ORDER_STREAM);
+            return keys;
+        }
+        for (int i = 0; i < partitions; i++) {
+            keys.add(SECKILL_ORDER_STREAM + ":" + i);
+        }
+        return keys;
+    }
+}
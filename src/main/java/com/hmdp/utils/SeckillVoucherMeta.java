@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import lombok.Data;
+
+import java.time.ZoneId;
+
+/**
+ * 秒杀券元数据，保存在Redis的 seckill:voucher:{id} 中，各节点在本地缓存一份
+ */
+@Data
+public class SeckillVoucherMeta {
+    /**
+     * 秒杀开始时间，毫秒时间戳
+     */
+    private Long beginTime;
+    /**
+     * 秒杀结束时间，毫秒时间戳
+     */
+    private Long endTime;
+    /**
+     * 库存分段数
+     */
+    private Integer segments;
+    /**
+     * 下单用户分片bitmap的分片位数，0表示下单用户保存在set中
+     */
+    private int buyerShardBits;
+
+    public static SeckillVoucherMeta of(SeckillVoucher seckillVoucher, int segments, int buyerShardBits) {
+        SeckillVoucherMeta meta = new SeckillVoucherMeta();
+        meta.setBeginTime(seckillVoucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        meta.setEndTime(seckillVoucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        meta.setSegments(segments);
+        meta.setBuyerShardBits(buyerShardBits);
+        return meta;
+    }
+}
@@ -0,0 +1,258 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.QueueTicketDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_QUEUE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀排队模式
+ * 用户先排队领号，后台按批次推进放行进度，号码不超过放行进度的用户才能秒杀。
+ * 查询排队位置只需要比较号码和放行进度，放行进度在本地缓存，查询不访问Redis
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    private static final DefaultRedisScript<Long> QUEUE_SCRIPT;
+    static {
+        QUEUE_SCRIPT = new DefaultRedisScript<>();
+        QUEUE_SCRIPT.setLocation(new ClassPathResource("seckill_queue.lua"));
+        QUEUE_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+    static {
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("seckill_queue_admit.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    // 优惠券id -> 本地缓存的放行进度
+    private final Map<Long, Cursor> cursors = new ConcurrentHashMap<>();
+    // 优惠券id -> 本地缓存的秒杀时间，放行任务不需要每个间隔都查询
+    private final Map<Long, Window> windows = new ConcurrentHashMap<>();
+    private ScheduledExecutorService admitExecutor;
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.WaitingRoom config = seckillProperties.getWaitingRoom();
+        if (config.getVouchers().isEmpty()) {
+            return;
+        }
+        admitExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("seckill-waiting-room-", true));
+        long interval = config.getBatchInterval().toMillis();
+        admitExecutor.scheduleAtFixedRate(this::admitBatches, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (admitExecutor != null) {
+            admitExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 是否开启了排队模式
+     */
+    public boolean isEnabled(Long voucherId) {
+        return seckillProperties.getWaitingRoom().getVouchers().contains(voucherId);
+    }
+
+    /**
+     * 排队领号，重复排队返回原来的号
+     */
+    public QueueTicketDTO enqueue(Long voucherId, Long userId) {
+        Long ticket = stringRedisTemplate.execute(
+                QUEUE_SCRIPT,
+                Arrays.asList(ticketKey(voucherId), seqKey(voucherId)),
+                userId.toString()
+        );
+        return status(voucherId, ticket);
+    }
+
+    /**
+     * 查询排队状态，只使用本地缓存的放行进度
+     */
+    public QueueTicketDTO status(Long voucherId, Long ticket) {
+        long admitted = admittedOf(voucherId);
+        QueueTicketDTO dto = new QueueTicketDTO();
+        dto.setVoucherId(voucherId);
+        dto.setTicket(ticket);
+        dto.setPosition(Math.max(0, ticket - admitted));
+        dto.setAdmitted(ticket <= admitted);
+        dto.setSoldOut(soldOutRegistry.isSoldOut(voucherId));
+        return dto;
+    }
+
+    /**
+     * 秒杀前校验用户是否已经放行
+     * @return 0表示已放行，-1表示没有排队，其它为前面还有多少人
+     */
+    public long checkAdmitted(Long voucherId, Long userId) {
+        Object ticket = stringRedisTemplate.opsForHash().get(ticketKey(voucherId), userId.toString());
+        if (ticket == null) {
+            return -1;
+        }
+        return Math.max(0, Long.parseLong(ticket.toString()) - admittedOf(voucherId));
+    }
+
+    /**
+     * 秒杀结束清理后删除本地缓存
+     */
+    public void forget(Long voucherId) {
+        cursors.remove(voucherId);
+        windows.remove(voucherId);
+    }
+
+    /**
+     * 排队相关的key，同一优惠券的key使用相同的hash tag，lua脚本在集群中可以同时操作
+     */
+    public static String ticketKey(Long voucherId) {
+        return SECKILL_QUEUE_KEY + "{" + voucherId + "}";
+    }
+
+    public static String seqKey(Long voucherId) {
+        return SECKILL_QUEUE_KEY + "{" + voucherId + "}:seq";
+    }
+
+    public static String admittedKey(Long voucherId) {
+        return SECKILL_QUEUE_KEY + "{" + voucherId + "}:admitted";
+    }
+
+    private static String tickKey(Long voucherId) {
+        return SECKILL_QUEUE_KEY + "{" + voucherId + "}:tick";
+    }
+
+    /**
+     * 放行进度，本地缓存cursor-refresh
+     */
+    private long admittedOf(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Cursor cursor = cursors.get(voucherId);
+        if (cursor != null && now - cursor.loadTime < seckillProperties.getWaitingRoom().getCursorRefresh().toMillis()) {
+            return cursor.admitted;
+        }
+        String value = stringRedisTemplate.opsForValue().get(admittedKey(voucherId));
+        long admitted = value == null ? 0 : Long.parseLong(value);
+        cursors.put(voucherId, new Cursor(admitted, now));
+        return admitted;
+    }
+
+    /**
+     * 推进放行进度，多个节点同时运行时通过tick key保证每个间隔只推进一次
+     */
+    private void admitBatches() {
+        SeckillProperties.WaitingRoom config = seckillProperties.getWaitingRoom();
+        long now = System.currentTimeMillis();
+        for (Long voucherId : config.getVouchers()) {
+            try {
+                // 1.秒杀开始之后才放行，否则第一批用户会在开始时刻同时涌入；秒杀结束后不再放行
+                Window window = windowOf(voucherId, now);
+                if (window.beginTime == null || now < window.beginTime || now > window.endTime) {
+                    continue;
+                }
+                // 2.抢占本次间隔的放行权
+                Boolean acquired = stringRedisTemplate.opsForValue().setIfAbsent(
+                        tickKey(voucherId), "1", Math.max(1, config.getBatchInterval().toMillis() - 10), TimeUnit.MILLISECONDS);
+                if (!Boolean.TRUE.equals(acquired)) {
+                    continue;
+                }
+                // 3.放行一批
+                stringRedisTemplate.execute(
+                        ADMIT_SCRIPT,
+                        Arrays.asList(seqKey(voucherId), admittedKey(voucherId)),
+                        String.valueOf(config.getBatchSize())
+                );
+            } catch (Exception e) {
+                log.error("排队放行异常，优惠券：" + voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 秒杀时间，本地缓存meta-refresh，已经结束的不再刷新
+     * 优先从Redis的元数据读取，清理后从数据库加载
+     */
+    private Window windowOf(Long voucherId, long now) {
+        Window window = windows.get(voucherId);
+        if (window != null && (window.ended(now)
+                || now - window.loadTime < seckillProperties.getMetaRefresh().toMillis())) {
+            return window;
+        }
+        Long beginTime = null;
+        Long endTime = null;
+        List<Object> meta = stringRedisTemplate.opsForHash().multiGet(
+                SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("beginTime", "endTime"));
+        if (meta.get(0) != null && meta.get(1) != null) {
+            beginTime = Long.valueOf(meta.get(0).toString());
+            endTime = Long.valueOf(meta.get(1).toString());
+        } else {
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if (voucher != null) {
+                beginTime = voucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                endTime = voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+        }
+        // 不存在的秒杀券也缓存下来，避免反复查询数据库
+        window = new Window(beginTime, endTime, now);
+        windows.put(voucherId, window);
+        return window;
+    }
+
+    private static class Cursor {
+        private final long admitted;
+        private final long loadTime;
+
+        private Cursor(long admitted, long loadTime) {
+            this.admitted = admitted;
+            this.loadTime = loadTime;
+        }
+    }
+
+    private static class Window {
+        private final Long beginTime;
+        private final Long endTime;
+        private final long loadTime;
+
+        private Window(Long beginTime, Long endTime, long loadTime) {
+            this.beginTime = beginTime;
+            this.endTime = endTime;
+            this.loadTime = loadTime;
+        }
+
+        private boolean ended(long now) {
+            return endTime != null && now > endTime;
+        }
+    }
+}
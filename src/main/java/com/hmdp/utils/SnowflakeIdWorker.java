@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 进程内的雪花算法id生成器，生成id时不需要访问Redis
+ * id布局：32位时间戳（秒） | 10位毫秒 | 10位workerId | 12位毫秒内序列号
+ * 高32位与RedisIdWorker相同，两种id可以按时间一起排序
+ * workerId在启动时通过Redis租约获取，后台定时续期；续期持续失败到租约可能已经过期时停止生成id，
+ * 避免其它实例租到同一个workerId后生成重复的id
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+
+    /**
+     * 开始时间戳，与RedisIdWorker相同
+     */
+    private static final long BEGIN_TIMESTAMP = 1672531200L;
+    private static final int MILLIS_BITS = 10;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    /**
+     * RedisIdWorker的时间戳是本地时间按UTC换算的秒数，这里加上同样的时区偏移
+     */
+    private static final TimeZone ZONE = TimeZone.getDefault();
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IdWorkerProperties idWorkerProperties;
+    private final String instanceId = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid() + "-" + UUID.randomUUID().toString(true);
+
+    private volatile long workerId = -1;
+    /**
+     * 租约的本地过期时间（System.nanoTime），从发出请求前开始计算并减去安全余量，早于Redis中的过期时间
+     */
+    private volatile long leaseExpireNanos;
+    // 上一个id使用的毫秒数，序列号用完时会借用下一毫秒，可能超前于系统时钟
+    private long lastMillis = -1;
+    // 上一次读取的系统时钟，只用它判断时钟回拨，借用的毫秒不算回拨
+    private long lastClockMillis = -1;
+    private long sequence = 0;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, IdWorkerProperties idWorkerProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.idWorkerProperties = idWorkerProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (idWorkerProperties.getMode() != IdWorkerProperties.Mode.SNOWFLAKE) {
+            return;
+        }
+        // 1.获取workerId租约
+        leaseWorkerId();
+        // 2.定时续期
+        long heartbeat = idWorkerProperties.getWorkerHeartbeat().toMillis();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("id-worker-heartbeat-", true));
+        heartbeatExecutor.scheduleWithFixedDelay(this::renewWorkerId, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor == null) {
+            return;
+        }
+        heartbeatExecutor.shutdownNow();
+        long current = workerId;
+        if (current >= 0) {
+            // 释放租约，其它实例可以立即复用这个workerId
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + current), instanceId);
+        }
+    }
+
+    public synchronized long nextId() {
+        long worker = workerId;
+        if (worker < 0) {
+            throw new IllegalStateException("workerId未就绪");
+        }
+        if (System.nanoTime() - leaseExpireNanos >= 0) {
+            throw new IllegalStateException("workerId租约已过期：" + worker);
+        }
+        // 1.获取当前毫秒数，时钟回拨时沿用上一次的毫秒数，继续递增序列号，保证id单调且不重复
+        long now = System.currentTimeMillis();
+        now += ZONE.getOffset(now);
+        if (lastClockMillis - now > idWorkerProperties.getMaxClockBackward().toMillis()) {
+            // 每次回拨只告警一次
+            log.warn("时钟回拨{}ms，使用逻辑时钟继续生成id", lastClockMillis - now);
+        }
+        lastClockMillis = now;
+        if (now < lastMillis) {
+            now = lastMillis;
+        }
+        // 2.生成序列号，同一毫秒内序列号用完时借用下一毫秒
+        if (now == lastMillis) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                now = lastMillis + 1;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = now;
+        // 3.拼接并返回
+        return compose(now, worker, sequence);
+    }
+
+    /**
+     * 按id布局拼接各部分
+     * @param now 当前时区的毫秒数
+     */
+    static long compose(long now, long worker, long sequence) {
+        long timestamp = now / 1000 - BEGIN_TIMESTAMP;
+        long millis = now % 1000;
+        return timestamp << (MILLIS_BITS + WORKER_BITS + SEQUENCE_BITS)
+                | millis << (WORKER_BITS + SEQUENCE_BITS)
+                | worker << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private void leaseWorkerId() {
+        long ttl = idWorkerProperties.getWorkerLeaseTtl().toMillis();
+        long start = System.nanoTime();
+        // 从随机位置开始尝试，减少多个实例同时启动时的冲突
+        int from = RandomUtil.randomInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (from + i) % (MAX_WORKER_ID + 1);
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, instanceId, ttl, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                leaseExpireNanos = leaseExpireAt(start);
+                workerId = id;
+                log.info("获取workerId成功：{}", id);
+                return;
+            }
+        }
+        workerId = -1;
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    private void renewWorkerId() {
+        try {
+            long current = workerId;
+            if (current >= 0) {
+                long start = System.nanoTime();
+                Long renewed = stringRedisTemplate.execute(
+                        RENEW_SCRIPT,
+                        Collections.singletonList(ID_WORKER_KEY + current),
+                        instanceId, String.valueOf(idWorkerProperties.getWorkerLeaseTtl().toMillis())
+                );
+                if (renewed != null && renewed == 1) {
+                    leaseExpireNanos = leaseExpireAt(start);
+                    return;
+                }
+                // 租约已经过期并且可能被其它实例占用，必须换一个workerId，换到之前不能再生成id
+                workerId = -1;
+                log.warn("workerId租约丢失：{}", current);
+            }
+            leaseWorkerId();
+        } catch (Exception e) {
+            // Redis暂时不可用时继续使用当前workerId，租约到期后nextId不再生成id，直到续期成功
+            log.error("workerId续期失败", e);
+        }
+    }
+
+    /**
+     * 租约的本地过期时间，安全余量为有效期的1/10，抵消本地和Redis计时的误差
+     * @param start 发出请求前的System.nanoTime
+     */
+    private long leaseExpireAt(long start) {
+        long ttl = idWorkerProperties.getWorkerLeaseTtl().toNanos();
+        return start + ttl - ttl / 10;
+    }
+}
@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记
+ * 秒杀券售罄后直接在内存中拒绝请求，不再生成订单id、执行lua脚本。
+ * 售罄和补货通过Redis发布订阅广播给其它节点
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "1:";
+    private static final String AVAILABLE = "0:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final SeckillProperties seckillProperties;
+    // 优惠券id -> 标记售罄的时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public SoldOutRegistry(StringRedisTemplate stringRedisTemplate,
+                           RedisMessageListenerContainer listenerContainer,
+                           SeckillProperties seckillProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.seckillProperties = seckillProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 是否已经售罄
+     * 标记超过sold-out-ttl后失效，放行一次请求到Redis重新确认，防止漏掉补货广播时一直拒绝
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markTime = soldOut.get(voucherId);
+        if (markTime == null) {
+            return false;
+        }
+        long ttl = seckillProperties.getSoldOutTtl().toMillis();
+        if (ttl > 0 && System.currentTimeMillis() - markTime > ttl) {
+            soldOut.remove(voucherId, markTime);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.put(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 库存回补后清除售罄标记并广播
+     */
+    public void markAvailable(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, AVAILABLE + voucherId);
+    }
+
+    /**
+     * 秒杀结束清理后删除本地标记，不广播，每个节点各自清理
+     */
+    public void forget(Long voucherId) {
+        soldOut.remove(voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body.substring(2));
+            if (body.startsWith(SOLD_OUT)) {
+                soldOut.putIfAbsent(voucherId, System.currentTimeMillis());
+            } else if (body.startsWith(AVAILABLE)) {
+                soldOut.remove(voucherId);
+            }
+        } catch (RuntimeException e) {
+            log.error("无效的售罄广播：{}", body);
+        }
+    }
+}
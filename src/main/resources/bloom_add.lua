@@ -0,0 +1,17 @@
+-- 向布隆过滤器的位数组中加入元素
+-- 1.参数列表
+-- 1.1.过滤器元数据key
+local metaKey = KEYS[1]
+-- 1.2.调用方计算位置时使用的版本
+local version = ARGV[1]
+
+-- 2.过滤器已经重建为新版本时返回0，调用方重新加载后再加入
+if(redis.call('hget', metaKey, 'version') ~= version) then
+    return 0
+end
+-- 3.设置每个位置 SETBIT key offset 1
+local bitmapKey = metaKey .. ':' .. version
+for i = 2, #ARGV do
+    redis.call('setbit', bitmapKey, ARGV[i], 1)
+end
+return 1
@@ -0,0 +1,19 @@
+-- 延迟队列取出到期的任务
+-- 取出的任务不删除，而是把分数推后一个租约时间，确认（ZREM）之前处理线程宕机时，租约到期后会被重新取出
+-- 1.参数列表
+-- 1.1.延迟队列key
+local queueKey = KEYS[1]
+-- 1.2.当前时间，毫秒
+local now = tonumber(ARGV[1])
+-- 1.3.最多取出的任务数
+local batchSize = tonumber(ARGV[2])
+-- 1.4.租约时间，毫秒
+local lease = tonumber(ARGV[3])
+
+-- 2.查询到期的任务 ZRANGEBYSCORE queueKey -inf now LIMIT 0 batchSize
+local members = redis.call('zrangebyscore', queueKey, '-inf', now, 'limit', 0, batchSize)
+-- 3.推后分数，占用这些任务
+for i = 1, #members do
+    redis.call('zadd', queueKey, now + lease, members[i])
+end
+return members
@@ -5,6 +5,13 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.订单消息队列（开启分区时为stream.orders:{n}）
+local streamKey = ARGV[4] or 'stream.orders'
+-- 1.5.秒杀开始、结束时间（毫秒时间戳），为空时不校验
+local beginTime = tonumber(ARGV[5])
+local endTime = tonumber(ARGV[6])
+-- 1.6.下单用户分片bitmap的分片位数，为0时使用set
+local shardBits = tonumber(ARGV[7]) or 0
 
 -- 2.数据key
 -- 2.1.库存key
@@ -12,21 +19,59 @@ local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
 
+-- 下单用户的记录方式：shardBits大于0时使用分片bitmap，用户id按2^shardBits分片，
+-- 分片key为 orderKey:分片号，用到的分片号记录在 orderKey:shards 中；否则使用set
+local function buyerBit(orderKey, userId)
+    local size = 2 ^ shardBits
+    local uid = tonumber(userId)
+    local shard = math.floor(uid / size)
+    return orderKey .. ':' .. shard, uid - shard * size, shard
+end
+local function isBuyer(orderKey, userId)
+    if shardBits > 0 then
+        local key, offset = buyerBit(orderKey, userId)
+        return redis.call('getbit', key, offset) == 1
+    end
+    return redis.call('sismember', orderKey, userId) == 1
+end
+-- 记录下单用户，返回是否是新用户
+local function addBuyer(orderKey, userId)
+    if shardBits > 0 then
+        local key, offset, shard = buyerBit(orderKey, userId)
+        redis.call('sadd', orderKey .. ':shards', shard)
+        return redis.call('setbit', key, offset, 1) == 0
+    end
+    return redis.call('sadd', orderKey, userId) == 1
+end
+
 -- 3.脚本业务
+-- 3.0.判断是否在秒杀时间内，使用Redis的时间，所有节点在开始和结束的边界上判断一致
+-- 读取时间后还要写入数据，需要开启按命令复制（Redis 5以上默认开启）
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(beginTime and now < beginTime) then
+    -- 秒杀未开始，返回4
+    return 4
+end
+if(endTime and now > endTime) then
+    -- 秒杀已结束，返回5
+    return 5
+end
 -- 3.1.判断库存是否充足 get stockKey
 if(tonumber(redis.call('get', stockKey)) <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember', orderKey, userId) == 1) then
+-- 3.2.判断用户是否下单 SISMEMBER orderKey userId / GETBIT orderKey:shard offset
+if(isBuyer(orderKey, userId)) then
     -- 3.3.存在，说明是重复下单，返回2
     return 2
 end
 -- 3.4.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
+-- 3.5.下单（保存用户）sadd orderKey userId / SETBIT orderKey:shard offset 1
+addBuyer(orderKey, userId)
 -- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 return 0
\ No newline at end of file
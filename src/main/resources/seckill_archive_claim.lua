@@ -0,0 +1,21 @@
+-- 抢占秒杀券的归档权
+-- 1.参数列表
+-- 1.1.归档key
+local archiveKey = KEYS[1]
+-- 1.2.当前时间，毫秒
+local now = tonumber(ARGV[1])
+-- 1.3.归档超时时间，毫秒，超过该时间还没完成的归档视为节点已宕机，可以重新归档
+local timeout = tonumber(ARGV[2])
+
+-- 2.已经归档完成
+if(redis.call('hexists', archiveKey, 'completedAt') == 1) then
+    return 0
+end
+-- 3.其它节点正在归档
+local archivedAt = redis.call('hget', archiveKey, 'archivedAt')
+if(archivedAt and now - tonumber(archivedAt) < timeout) then
+    return 0
+end
+-- 4.抢占，归档开始时间记为当前时间
+redis.call('hset', archiveKey, 'archivedAt', now)
+return 1
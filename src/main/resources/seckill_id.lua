@@ -0,0 +1,98 @@
+-- 与seckill.lua相同，但订单id在下单成功后由脚本生成
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.用户id
+local userId = ARGV[2]
+-- 1.3.订单id的时间戳部分（时间戳左移32位），十进制字符串
+local idHigh = ARGV[3]
+-- 1.4.订单消息队列
+local streamKey = ARGV[4]
+-- 1.5.序列号key icr:order:yyyy:MM:dd
+local sequenceKey = ARGV[5]
+-- 1.6.秒杀开始、结束时间（毫秒时间戳）
+local beginTime = tonumber(ARGV[6])
+local endTime = tonumber(ARGV[7])
+-- 1.7.下单用户分片bitmap的分片位数，为0时使用set
+local shardBits = tonumber(ARGV[8]) or 0
+
+-- 2.数据key
+-- 2.1.库存key
+local stockKey = 'seckill:stock:' .. voucherId
+-- 2.2.订单key
+local orderKey = 'seckill:order:' .. voucherId
+
+-- 下单用户的记录方式：shardBits大于0时使用分片bitmap，用户id按2^shardBits分片，
+-- 分片key为 orderKey:分片号，用到的分片号记录在 orderKey:shards 中；否则使用set
+local function buyerBit(orderKey, userId)
+    local size = 2 ^ shardBits
+    local uid = tonumber(userId)
+    local shard = math.floor(uid / size)
+    return orderKey .. ':' .. shard, uid - shard * size, shard
+end
+local function isBuyer(orderKey, userId)
+    if shardBits > 0 then
+        local key, offset = buyerBit(orderKey, userId)
+        return redis.call('getbit', key, offset) == 1
+    end
+    return redis.call('sismember', orderKey, userId) == 1
+end
+-- 记录下单用户，返回是否是新用户
+local function addBuyer(orderKey, userId)
+    if shardBits > 0 then
+        local key, offset, shard = buyerBit(orderKey, userId)
+        redis.call('sadd', orderKey .. ':shards', shard)
+        return redis.call('setbit', key, offset, 1) == 0
+    end
+    return redis.call('sadd', orderKey, userId) == 1
+end
+
+-- lua的数字是双精度浮点数，超过2^53会丢失精度，这里按十进制字符串把序列号加到低12位上
+local function buildOrderId(high, sequence)
+    local len = string.len(high)
+    if len <= 12 then
+        return string.format('%.0f', tonumber(high) + sequence)
+    end
+    local head = string.sub(high, 1, len - 12)
+    local tail = tonumber(string.sub(high, len - 11)) + sequence
+    if tail >= 1000000000000 then
+        head = string.format('%.0f', tonumber(head) + 1)
+        tail = tail - 1000000000000
+    end
+    return head .. string.format('%012.0f', tail)
+end
+
+-- 3.脚本业务
+-- 3.0.判断是否在秒杀时间内，使用Redis的时间，所有节点在开始和结束的边界上判断一致
+-- 读取时间后还要写入数据，需要开启按命令复制（Redis 5以上默认开启）
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(beginTime and now < beginTime) then
+    -- 秒杀未开始，返回4
+    return '4'
+end
+if(endTime and now > endTime) then
+    -- 秒杀已结束，返回5
+    return '5'
+end
+-- 3.1.判断库存是否充足 get stockKey
+if(tonumber(redis.call('get', stockKey)) <= 0) then
+    -- 3.2.库存不足，返回1
+    return '1'
+end
+-- 3.2.判断用户是否下单 SISMEMBER orderKey userId / GETBIT orderKey:shard offset
+if(isBuyer(orderKey, userId)) then
+    -- 3.3.存在，说明是重复下单，返回2
+    return '2'
+end
+-- 3.4.扣库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 3.5.下单（保存用户）sadd orderKey userId / SETBIT orderKey:shard offset 1
+addBuyer(orderKey, userId)
+-- 3.6.生成订单id incr icr:order:yyyy:MM:dd
+local orderId = buildOrderId(idHigh, redis.call('incr', sequenceKey))
+-- 3.7.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.8.返回订单id
+return orderId
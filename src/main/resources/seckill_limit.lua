@@ -0,0 +1,31 @@
+-- 秒杀全局令牌桶，各节点每次批量领取令牌
+-- 1.参数列表
+-- 1.1.令牌桶key
+local key = KEYS[1]
+-- 1.2.每秒生成的令牌数
+local rate = tonumber(ARGV[1])
+-- 1.3.桶容量
+local capacity = tonumber(ARGV[2])
+-- 1.4.本次领取的令牌数
+local requested = tonumber(ARGV[3])
+
+-- 2.按Redis的时间补充令牌，读取时间后还要写入数据，需要开启按命令复制
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate / 1000)
+
+-- 3.领取令牌，不足时能领多少领多少
+local granted = math.min(requested, math.floor(tokens))
+tokens = tokens - granted
+redis.call('hset', key, 'tokens', tostring(tokens), 'ts', now)
+-- 桶装满之后的数据没有意义，让key自动过期
+redis.call('pexpire', key, math.ceil(capacity * 1000 / rate) + 1000)
+if(granted > 0) then
+    return granted
+end
+-- 4.一个令牌都没有，返回负数，绝对值为下一个令牌生成需要等待的毫秒数
+return -math.ceil((1 - tokens) * 1000 / rate)
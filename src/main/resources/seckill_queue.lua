@@ -0,0 +1,18 @@
+-- 排队领号，同一用户重复排队返回原来的号
+-- 1.参数列表
+-- 1.1.用户的号 seckill:queue:{voucherId}
+local ticketKey = KEYS[1]
+-- 1.2.已发放的最大号 seckill:queue:{voucherId}:seq
+local seqKey = KEYS[2]
+-- 1.3.用户id
+local userId = ARGV[1]
+
+-- 2.已经排过队，返回原来的号
+local ticket = redis.call('hget', ticketKey, userId)
+if(ticket) then
+    return tonumber(ticket)
+end
+-- 3.领取新号
+ticket = redis.call('incr', seqKey)
+redis.call('hset', ticketKey, userId, ticket)
+return ticket
@@ -0,0 +1,18 @@
+-- 放行一批排队的用户，放行进度不会超过已发放的最大号
+-- 1.参数列表
+-- 1.1.已发放的最大号 seckill:queue:{voucherId}:seq
+local seqKey = KEYS[1]
+-- 1.2.已放行的最大号 seckill:queue:{voucherId}:admitted
+local admittedKey = KEYS[2]
+-- 1.3.本批放行人数
+local batchSize = tonumber(ARGV[1])
+
+local seq = tonumber(redis.call('get', seqKey) or '0')
+local admitted = tonumber(redis.call('get', admittedKey) or '0')
+if(admitted >= seq) then
+    -- 没有等待的用户
+    return admitted
+end
+admitted = math.min(seq, admitted + batchSize)
+redis.call('set', admittedKey, admitted)
+return admitted
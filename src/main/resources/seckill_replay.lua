@@ -0,0 +1,53 @@
+-- 从订单日志恢复Redis中的下单用户和库存，用户已经在集合中时不重复扣减，库存不足时不扣成负数
+-- 1.参数列表
+-- 1.1.库存key（分段库存时为用户所属分段的库存key）
+local stockKey = KEYS[1]
+-- 1.2.下单用户key（分段库存时为用户所属分段的下单用户key）
+local orderKey = KEYS[2]
+-- 1.3.用户id
+local userId = ARGV[1]
+-- 1.4.下单用户分片bitmap的分片位数，为0时使用set
+local shardBits = tonumber(ARGV[2]) or 0
+
+-- 下单用户的记录方式：shardBits大于0时使用分片bitmap，用户id按2^shardBits分片，
+-- 分片key为 orderKey:分片号，用到的分片号记录在 orderKey:shards 中；否则使用set
+local function buyerBit(orderKey, userId)
+    local size = 2 ^ shardBits
+    local uid = tonumber(userId)
+    local shard = math.floor(uid / size)
+    return orderKey .. ':' .. shard, uid - shard * size, shard
+end
+local function isBuyer(orderKey, userId)
+    if shardBits > 0 then
+        local key, offset = buyerBit(orderKey, userId)
+        return redis.call('getbit', key, offset) == 1
+    end
+    return redis.call('sismember', orderKey, userId) == 1
+end
+-- 记录下单用户，返回是否是新用户
+local function addBuyer(orderKey, userId)
+    if shardBits > 0 then
+        local key, offset, shard = buyerBit(orderKey, userId)
+        redis.call('sadd', orderKey .. ':shards', shard)
+        return redis.call('setbit', key, offset, 1) == 0
+    end
+    return redis.call('sadd', orderKey, userId) == 1
+end
+
+-- 2.用户已经在集合中，Redis没有丢数据，不需要恢复，返回0
+if(isBuyer(orderKey, userId)) then
+    return 0
+end
+local stock = redis.call('get', stockKey)
+-- 3.秒杀已经清理，Redis中没有库存，返回3，由调用方扣减数据库库存
+if(not stock) then
+    return 3
+end
+-- 4.主从切换后恢复出来的库存已经被其它用户抢走，返回2，不能扣成负数
+if(tonumber(stock) <= 0) then
+    return 2
+end
+-- 5.恢复下单用户并扣减库存
+addBuyer(orderKey, userId)
+redis.call('incrby', stockKey, -1)
+return 1
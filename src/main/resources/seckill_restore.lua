@@ -0,0 +1,25 @@
+-- 取消订单后回补秒杀库存
+-- 1.参数列表
+-- 1.1.库存key（分段库存时为用户所属分段的库存key）
+local stockKey = KEYS[1]
+-- 1.2.已回补订单key（分段库存时与库存key位于同一个slot）
+local restoredKey = KEYS[2]
+-- 1.3.订单id
+local orderId = ARGV[1]
+-- 1.4.已回补订单key的有效期，秒
+local restoredTtl = tonumber(ARGV[2])
+
+-- 下单用户不移除，取消的订单仍占用一人一单的名额：数据库中已取消的订单还在唯一索引中，用户重新抢购也无法落库
+
+-- 2.记录已回补的订单 sadd restoredKey orderId，订单已经回补过时不能重复回补（任务重新投递）
+if(redis.call('sadd', restoredKey, orderId) == 0) then
+    return 0
+end
+redis.call('expire', restoredKey, restoredTtl)
+-- 3.秒杀已经清理时Redis中没有库存，返回2，由调用方回补数据库库存
+if(redis.call('exists', stockKey) == 0) then
+    return 2
+end
+-- 4.回补库存 incrby stockKey 1
+redis.call('incrby', stockKey, 1)
+return 1
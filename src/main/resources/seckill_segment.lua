@@ -0,0 +1,65 @@
+-- 分段库存秒杀，只操作用户所属分段的key，集群中位于同一个slot
+-- 1.参数列表
+-- 1.1.分段库存key
+local stockKey = KEYS[1]
+-- 1.2.分段订单key
+local orderKey = KEYS[2]
+-- 1.3.分段未发送消息的订单key（hash），节点在发送消息前宕机时由恢复任务补发消息或释放名额
+local pendingKey = KEYS[3]
+-- 1.4.用户id
+local userId = ARGV[1]
+-- 1.5.秒杀开始、结束时间（毫秒时间戳）
+local beginTime = tonumber(ARGV[2])
+local endTime = tonumber(ARGV[3])
+-- 1.6.下单用户分片bitmap的分片位数，为0时使用set
+local shardBits = tonumber(ARGV[4]) or 0
+-- 1.7.订单id
+local orderId = ARGV[5]
+
+-- 下单用户的记录方式：shardBits大于0时使用分片bitmap，用户id按2^shardBits分片，
+-- 分片key为 orderKey:分片号，用到的分片号记录在 orderKey:shards 中；否则使用set
+local function buyerBit(orderKey, userId)
+    local size = 2 ^ shardBits
+    local uid = tonumber(userId)
+    local shard = math.floor(uid / size)
+    return orderKey .. ':' .. shard, uid - shard * size, shard
+end
+-- 记录下单用户，返回是否是新用户
+local function addBuyer(orderKey, userId)
+    if shardBits > 0 then
+        local key, offset, shard = buyerBit(orderKey, userId)
+        redis.call('sadd', orderKey .. ':shards', shard)
+        return redis.call('setbit', key, offset, 1) == 0
+    end
+    return redis.call('sadd', orderKey, userId) == 1
+end
+
+-- 2.0.判断是否在秒杀时间内，使用Redis的时间，所有节点在开始和结束的边界上判断一致
+-- 读取时间后还要写入数据，需要开启按命令复制（Redis 5以上默认开启）
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(beginTime and now < beginTime) then
+    -- 秒杀未开始，返回4
+    return 4
+end
+if(endTime and now > endTime) then
+    -- 秒杀已结束，返回5
+    return 5
+end
+-- 2.判断用户是否下单，同时占用一人一单名额，即使本分段库存不足也要占用，防止用户在其它分段重复下单
+if(not addBuyer(orderKey, userId)) then
+    -- 2.1.存在，说明是重复下单，返回2
+    return 2
+end
+-- 3.判断本分段库存是否充足
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    -- 3.1.本分段库存不足，记录未扣减库存的订单，返回3，由调用方尝试其它分段
+    redis.call('hset', pendingKey, orderId, userId .. ':0:' .. now)
+    return 3
+end
+-- 4.扣库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 5.记录已扣减库存的订单 hset pendingKey orderId userId:1:now，消息由调用方发送
+redis.call('hset', pendingKey, orderId, userId .. ':1:' .. now)
+return 0
@@ -0,0 +1,27 @@
+-- 分段库存下单失败时释放一人一单名额
+-- 1.参数列表
+-- 1.1.分段订单key
+local orderKey = KEYS[1]
+-- 1.2.分段未发送消息的订单key
+local pendingKey = KEYS[2]
+-- 1.3.用户id
+local userId = ARGV[1]
+-- 1.4.下单用户分片bitmap的分片位数，为0时使用set
+local shardBits = tonumber(ARGV[2]) or 0
+-- 1.5.订单id
+local orderId = ARGV[3]
+
+-- 2.订单已经不在未发送列表中，说明已经处理过了（消息已发送或名额已释放），不能再释放
+if(redis.call('hdel', pendingKey, orderId) == 0) then
+    return 0
+end
+-- 3.移除下单用户 srem orderKey userId / SETBIT orderKey:shard offset 0
+if shardBits > 0 then
+    local size = 2 ^ shardBits
+    local uid = tonumber(userId)
+    local shard = math.floor(uid / size)
+    redis.call('setbit', orderKey .. ':' .. shard, uid - shard * size, 0)
+else
+    redis.call('srem', orderKey, userId)
+end
+return 1
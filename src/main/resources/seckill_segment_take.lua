@@ -0,0 +1,9 @@
+-- 从其它分段借库存
+-- 1.判断库存是否充足
+if(tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    -- 1.1.库存不足，返回1
+    return 1
+end
+-- 2.扣库存 incrby stockKey -1
+redis.call('incrby', KEYS[1], -1)
+return 0
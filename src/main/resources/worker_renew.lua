@@ -0,0 +1,6 @@
+-- 比较workerId租约中的实例标识与当前实例是否一致
+if(redis.call('get',KEYS[1])==ARGV[1]) then
+    -- 续期 pexpire key ttl
+    return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
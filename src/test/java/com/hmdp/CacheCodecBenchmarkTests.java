@@ -0,0 +1,120 @@
+package com.hmdp;
+
+import cn.hutool.core.util.RandomUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.HutoolJsonCodec;
+import com.hmdp.utils.JacksonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 缓存编解码器对比，不需要Redis和数据库
+ * 对每个编解码器统计商铺、笔记编码后的字节数，以及命中缓存时的解码耗时和每次解码分配的内存，
+ * 逻辑过期的数据对应queryWithLogicalExpire的解码路径
+ * 运行：mvn test -Pbenchmark -Dbench.test=CacheCodecBenchmarkTests -Dbench.iterations=200000
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class CacheCodecBenchmarkTests {
+
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 200000);
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 50000);
+
+    private final List<CacheCodec> codecs = Arrays.asList(
+            new HutoolJsonCodec(), new JacksonCacheCodec(), new KryoCacheCodec());
+
+    @Test
+    void benchmarkCodecs() {
+        Shop shop = sampleShop();
+        Blog blog = sampleBlog();
+        // 毫秒精度，与json中的时间戳一致，便于比较
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(20).truncatedTo(ChronoUnit.MILLIS);
+        System.out.println("========== 缓存编解码 ==========");
+        System.out.printf("%-8s %-14s %8s %12s %14s%n", "codec", "value", "bytes", "decode ns", "alloc B/op");
+        for (CacheCodec codec : codecs) {
+            // 1.正确性：解码结果与原对象一致
+            assertEquals(shop, codec.decode(codec.encode(shop), Shop.class), codec.name());
+            assertEquals(blog, codec.decode(codec.encode(blog), Blog.class), codec.name());
+            RedisData redisData = codec.decodeWithExpire(codec.encodeWithExpire(shop, expireTime), Shop.class);
+            assertEquals(shop, redisData.getData(), codec.name());
+            assertEquals(expireTime, redisData.getExpireTime(), codec.name());
+
+            // 2.字节数和解码耗时
+            byte[] shopBytes = codec.encode(shop);
+            byte[] blogBytes = codec.encode(blog);
+            byte[] expireBytes = codec.encodeWithExpire(shop, expireTime);
+            report(codec.name(), "shop", shopBytes.length, () -> codec.decode(shopBytes, Shop.class));
+            report(codec.name(), "blog", blogBytes.length, () -> codec.decode(blogBytes, Blog.class));
+            report(codec.name(), "shop+expire", expireBytes.length, () -> codec.decodeWithExpire(expireBytes, Shop.class));
+        }
+        // 3.hutool与jackson格式相同，可以互相读取
+        CacheCodec hutool = codecs.get(0);
+        CacheCodec jackson = codecs.get(1);
+        assertEquals(shop, jackson.decode(hutool.encode(shop), Shop.class));
+        assertEquals(shop, hutool.decode(jackson.encode(shop), Shop.class));
+        assertEquals(shop, jackson.decodeWithExpire(hutool.encodeWithExpire(shop, expireTime), Shop.class).getData());
+    }
+
+    private static void report(String codec, String value, int bytes, Runnable decode) {
+        for (int i = 0; i < WARMUP; i++) {
+            decode.run();
+        }
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            decode.run();
+        }
+        long nanos = System.nanoTime() - begin;
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+        System.out.printf("%-8s %-14s %8d %12.0f %14d%n",
+                codec, value, bytes, (double) nanos / ITERATIONS, allocated / ITERATIONS);
+    }
+
+    private static Shop sampleShop() {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(now)
+                .setUpdateTime(now);
+    }
+
+    private static Blog sampleBlog() {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        return new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent(RandomUtil.randomString("生活就是一半烟火，一半诗意。手执烟火谋生活，心怀诗意以谋爱。", 2000))
+                .setLiked(12)
+                .setComments(104)
+                .setCreateTime(now)
+                .setUpdateTime(now);
+    }
+}
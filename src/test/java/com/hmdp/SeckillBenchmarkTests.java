@@ -0,0 +1,277 @@
+package com.hmdp;
+
+import cn.hutool.core.util.RandomUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.net.ServerSocket;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀端到端压测
+ * 数据库使用H2（MySQL模式），Redis默认启动本地的redis-server进程（需要5.0以上，支持Stream），
+ * 也可以用 -Dbench.redis.host 指定已有的Redis，压测会清空 bench.redis.database 指定的库。
+ * 运行：mvn test -Pbenchmark -Dbench.vouchers=2 -Dbench.users=2000 -Dbench.stock=100 -Dbench.concurrency=64
+ * 其它秒杀配置可以直接用 -Dhmdp.seckill.xxx 覆盖，方便对比不同的方案
+ */
+@SpringBootTest
+@ActiveProfiles("bench")
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class SeckillBenchmarkTests {
+
+    private static final int VOUCHERS = Integer.getInteger("bench.vouchers", 2);
+    private static final int USERS = Integer.getInteger("bench.users", 2000);
+    private static final int STOCK = Integer.getInteger("bench.stock", 100);
+    private static final int CONCURRENCY = Integer.getInteger("bench.concurrency", 64);
+    // 每个用户的请求次数，大于1时会产生重复下单的请求
+    private static final int ATTEMPTS = Integer.getInteger("bench.attempts", 2);
+    private static final long DRAIN_TIMEOUT = Long.getLong("bench.drain-timeout", 60) * 1000;
+
+    private static Process redisProcess;
+
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws Exception {
+        String host = System.getProperty("bench.redis.host");
+        int port;
+        String password;
+        if (host == null) {
+            // 1.启动本地Redis，不持久化
+            host = "127.0.0.1";
+            password = "bench";
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            redisProcess = new ProcessBuilder(System.getProperty("bench.redis-server", "redis-server"),
+                    "--port", String.valueOf(port), "--requirepass", password,
+                    "--save", "", "--appendonly", "no")
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "hmdp-bench-redis.log"))
+                    .start();
+        } else {
+            port = Integer.getInteger("bench.redis.port", 6379);
+            password = System.getProperty("bench.redis.password", "");
+        }
+        int database = Integer.getInteger("bench.redis.database", 15);
+        // 2.等待Redis可用，并在应用启动前清空压测使用的库
+        RedisURI uri = RedisURI.builder().withHost(host).withPort(port).withDatabase(database).build();
+        if (!password.isEmpty()) {
+            uri.setPassword(password.toCharArray());
+        }
+        RedisClient client = RedisClient.create(uri);
+        try {
+            for (int i = 0; ; i++) {
+                try (StatefulRedisConnection<String, String> connection = client.connect()) {
+                    connection.sync().flushdb();
+                    break;
+                } catch (Exception e) {
+                    if (i >= 50) {
+                        throw e;
+                    }
+                    Thread.sleep(100);
+                }
+            }
+        } finally {
+            client.shutdown();
+        }
+        String redisHost = host;
+        int redisPort = port;
+        registry.add("spring.redis.host", () -> redisHost);
+        registry.add("spring.redis.port", () -> redisPort);
+        registry.add("spring.redis.password", () -> password);
+        registry.add("spring.redis.database", () -> database);
+    }
+
+    @AfterAll
+    static void stopRedis() {
+        if (redisProcess != null) {
+            redisProcess.destroy();
+        }
+    }
+
+    @Test
+    void benchmarkSeckill() throws Exception {
+        // 1.准备秒杀券
+        List<Long> voucherIds = new ArrayList<>();
+        for (int i = 0; i < VOUCHERS; i++) {
+            Voucher voucher = new Voucher();
+            voucher.setShopId(1L);
+            voucher.setTitle("压测券" + i);
+            voucher.setPayValue(100L);
+            voucher.setActualValue(200L);
+            voucher.setType(1);
+            voucher.setStock(STOCK);
+            voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+            voucher.setEndTime(LocalDateTime.now().plusHours(1));
+            voucherService.addSeckillVoucher(voucher);
+            voucherIds.add(voucher.getId());
+        }
+
+        // 2.并发请求，每个用户随机选择秒杀券
+        int requests = USERS * ATTEMPTS;
+        long[] latencies = new long[requests];
+        long[] acceptedAt = new long[requests];
+        AtomicInteger requestIndex = new AtomicInteger();
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(CONCURRENCY);
+        CountDownLatch latch = new CountDownLatch(CONCURRENCY);
+        // 后台采样数据库中的订单数，估算从下单成功到落库的时间
+        List<long[]> samples = new ArrayList<>();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                samples.add(new long[]{System.nanoTime(), voucherOrderService.count()});
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "bench-sampler");
+        sampler.start();
+        long begin = System.nanoTime();
+        for (int t = 0; t < CONCURRENCY; t++) {
+            es.submit(() -> {
+                try {
+                    int i;
+                    while ((i = requestIndex.getAndIncrement()) < requests) {
+                        UserDTO user = new UserDTO();
+                        user.setId((long) (i % USERS) + 1);
+                        UserHolder.saveUser(user);
+                        Long voucherId = voucherIds.get(RandomUtil.randomInt(voucherIds.size()));
+                        long start = System.nanoTime();
+                        Result result = voucherOrderService.sekillVocher(voucherId);
+                        long end = System.nanoTime();
+                        latencies[i] = end - start;
+                        if (result.getSuccess()) {
+                            acceptedAt[accepted.getAndIncrement()] = end;
+                        } else {
+                            rejected.incrementAndGet();
+                        }
+                        UserHolder.removeUser();
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long loadNanos = System.nanoTime() - begin;
+        es.shutdown();
+
+        // 3.等待订单全部落库
+        long drainBegin = System.currentTimeMillis();
+        while (voucherOrderService.count() < accepted.get()
+                && System.currentTimeMillis() - drainBegin < DRAIN_TIMEOUT) {
+            Thread.sleep(20);
+        }
+        long drainMillis = System.currentTimeMillis() - drainBegin;
+        Thread.sleep(100);
+        sampler.interrupt();
+        sampler.join();
+
+        // 4.统计
+        Arrays.sort(latencies);
+        long[] acceptedTimes = Arrays.copyOf(acceptedAt, accepted.get());
+        Arrays.sort(acceptedTimes);
+        long[] persistLags = persistLags(acceptedTimes, samples);
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.printf("秒杀券：%d，库存：%d，用户：%d，请求：%d，并发：%d%n", VOUCHERS, STOCK, USERS, requests, CONCURRENCY);
+        System.out.printf("下单成功：%d，失败：%d，耗时：%d ms，吞吐：%.0f req/s，成功：%.0f orders/s%n",
+                accepted.get(), rejected.get(), loadNanos / 1_000_000,
+                requests * 1e9 / loadNanos, accepted.get() * 1e9 / loadNanos);
+        System.out.printf("请求延迟 p50：%.3f ms，p99：%.3f ms，max：%.3f ms%n",
+                percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6, latencies[latencies.length - 1] / 1e6);
+        System.out.printf("落库延迟 p50：%.1f ms，p99：%.1f ms，压测结束后追平耗时：%d ms%n",
+                percentile(persistLags, 50) / 1e6, percentile(persistLags, 99) / 1e6, drainMillis);
+
+        // 5.正确性校验
+        int orders = voucherOrderService.count();
+        assertEquals(accepted.get(), orders, "下单成功的订单没有全部落库");
+        List<VoucherOrder> duplicates = voucherOrderService.query()
+                .select("user_id", "voucher_id")
+                .groupBy("user_id", "voucher_id")
+                .having("count(*) > 1")
+                .list();
+        assertTrue(duplicates.isEmpty(), "一人多单：" + duplicates);
+        for (Long voucherId : voucherIds) {
+            int voucherOrders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            String redisStock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            Long buyers = stringRedisTemplate.opsForSet().size(SECKILL_ORDER_KEY + voucherId);
+            System.out.printf("秒杀券%d：订单%d，数据库库存%d，Redis库存%s，下单用户%d%n",
+                    voucherId, voucherOrders, seckillVoucher.getStock(), redisStock, buyers);
+            assertTrue(voucherOrders <= STOCK, "超卖：" + voucherId);
+            assertTrue(seckillVoucher.getStock() >= 0, "数据库库存为负：" + voucherId);
+            if (redisStock != null) {
+                assertTrue(Integer.parseInt(redisStock) >= 0, "Redis库存为负：" + voucherId);
+                assertEquals(STOCK - voucherOrders, Integer.parseInt(redisStock), "Redis库存与订单数不一致：" + voucherId);
+            }
+        }
+    }
+
+    /**
+     * 按下单成功的时间顺序，第i个订单的落库时间取订单数第一次达到i+1的采样时间
+     */
+    private static long[] persistLags(long[] acceptedTimes, List<long[]> samples) {
+        long[] lags = new long[acceptedTimes.length];
+        int s = 0;
+        for (int i = 0; i < acceptedTimes.length; i++) {
+            while (s < samples.size() && samples.get(s)[1] < i + 1) {
+                s++;
+            }
+            long persistedAt = s < samples.size() ? samples.get(s)[0] : acceptedTimes[i];
+            lags[i] = Math.max(0, persistedAt - acceptedTimes[i]);
+        }
+        Arrays.sort(lags);
+        return lags;
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
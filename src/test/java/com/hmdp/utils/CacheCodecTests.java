@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存编解码器的正确性，不需要Redis和数据库
+ * hutool与jackson写出的json格式相同，切换编解码器后已有的缓存仍然可以读取
+ */
+class CacheCodecTests {
+
+    // 毫秒精度，与json中的时间戳一致
+    private static final LocalDateTime TIME = LocalDateTime.of(2024, 5, 20, 13, 14, 15, 678_000_000);
+
+    private final HutoolJsonCodec hutool = new HutoolJsonCodec();
+    private final JacksonCacheCodec jackson = new JacksonCacheCodec();
+    private final List<CacheCodec> codecs = Arrays.asList(hutool, jackson, new KryoCacheCodec());
+
+    @Test
+    void roundTrip() {
+        for (CacheCodec codec : codecs) {
+            byte[] shopBytes = codec.encode(sampleShop());
+            assertTrue(shopBytes.length > 0, codec.name());
+            assertEquals(sampleShop(), codec.decode(shopBytes, Shop.class), codec.name());
+            assertEquals(sampleBlog(), codec.decode(codec.encode(sampleBlog()), Blog.class), codec.name());
+            // 没有赋值的字段解码后仍为null
+            Shop partial = new Shop().setId(2L).setName("partial");
+            assertEquals(partial, codec.decode(codec.encode(partial), Shop.class), codec.name());
+        }
+    }
+
+    @Test
+    void roundTripWithExpire() {
+        LocalDateTime expireTime = TIME.plusSeconds(20);
+        for (CacheCodec codec : codecs) {
+            RedisData redisData = codec.decodeWithExpire(codec.encodeWithExpire(sampleShop(), expireTime), Shop.class);
+            assertEquals(expireTime, redisData.getExpireTime(), codec.name());
+            assertEquals(sampleShop(), redisData.getData(), codec.name());
+        }
+    }
+
+    @Test
+    void hutoolAndJacksonReadEachOther() {
+        assertEquals(sampleShop(), jackson.decode(hutool.encode(sampleShop()), Shop.class));
+        assertEquals(sampleShop(), hutool.decode(jackson.encode(sampleShop()), Shop.class));
+        assertEquals(sampleBlog(), jackson.decode(hutool.encode(sampleBlog()), Blog.class));
+        assertEquals(sampleBlog(), hutool.decode(jackson.encode(sampleBlog()), Blog.class));
+    }
+
+    @Test
+    void hutoolAndJacksonReadEachOtherWithExpire() {
+        LocalDateTime expireTime = TIME.plusSeconds(20);
+
+        RedisData fromHutool = jackson.decodeWithExpire(hutool.encodeWithExpire(sampleShop(), expireTime), Shop.class);
+        assertEquals(expireTime, fromHutool.getExpireTime());
+        assertEquals(sampleShop(), fromHutool.getData());
+
+        RedisData fromJackson = hutool.decodeWithExpire(jackson.encodeWithExpire(sampleShop(), expireTime), Shop.class);
+        assertEquals(expireTime, fromJackson.getExpireTime());
+        assertEquals(sampleShop(), fromJackson.getData());
+    }
+
+    private static Shop sampleShop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(TIME)
+                .setUpdateTime(TIME);
+    }
+
+    private static Blog sampleBlog() {
+        return new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent("生活就是一半烟火，一半诗意。手执烟火谋生活，心怀诗意以谋爱。")
+                .setLiked(12)
+                .setComments(104)
+                .setCreateTime(TIME)
+                .setUpdateTime(TIME);
+    }
+}
@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 布隆过滤器本地位数组与Redis bitmap的位布局，不需要Redis和数据库
+ * Redis SETBIT的第i位在第i>>3个字节中，掩码为 0x80>>(i&7)
+ */
+class RedisBloomFilterSnapshotTests {
+
+    private static final long BITS = 1000;
+
+    @Test
+    void toBytesMatchesRedisBitmapLayout() {
+        RedisBloomFilter.Snapshot snapshot = new RedisBloomFilter.Snapshot(new RedisBloomFilter.Meta("v1", BITS, 3, 100));
+        long[] positions = {0, 7, 8, 63, 64, 513, BITS - 1};
+        snapshot.setAll(positions);
+
+        byte[] bytes = snapshot.toBytes();
+        assertEquals((BITS + 7) / 8, bytes.length);
+        assertArrayEquals(setbit(positions), bytes);
+    }
+
+    @Test
+    void mergeReadsRedisBitmapLayout() {
+        long[] positions = {1, 6, 62, 65, 127, 128, BITS - 1};
+        RedisBloomFilter.Snapshot snapshot = new RedisBloomFilter.Snapshot(new RedisBloomFilter.Meta("v1", BITS, 3, 100));
+        snapshot.merge(setbit(positions));
+
+        assertTrue(snapshot.containsAll(positions));
+        for (long position : positions) {
+            assertTrue(snapshot.containsAll(new long[]{position}));
+        }
+        assertFalse(snapshot.containsAll(new long[]{0}));
+        assertFalse(snapshot.containsAll(new long[]{1, 2}));
+        assertFalse(snapshot.containsAll(new long[]{64}));
+        assertArrayEquals(setbit(positions), snapshot.toBytes());
+    }
+
+    @Test
+    void mergeKeepsLocalBits() {
+        RedisBloomFilter.Snapshot snapshot = new RedisBloomFilter.Snapshot(new RedisBloomFilter.Meta("v1", BITS, 3, 100));
+        snapshot.setAll(new long[]{3, 300});
+        snapshot.merge(setbit(new long[]{4, 700}));
+
+        assertArrayEquals(setbit(new long[]{3, 4, 300, 700}), snapshot.toBytes());
+    }
+
+    @Test
+    void roundTripThroughBytes() {
+        RedisBloomFilter.Meta meta = RedisBloomFilter.Meta.of("v1", 1000, 0.01);
+        RedisBloomFilter.Snapshot built = new RedisBloomFilter.Snapshot(meta);
+        for (long id = 1; id <= 1000; id++) {
+            built.setAll(meta.positionsOf(id));
+        }
+
+        RedisBloomFilter.Snapshot loaded = new RedisBloomFilter.Snapshot(meta);
+        loaded.merge(built.toBytes());
+        for (long id = 1; id <= 1000; id++) {
+            assertTrue(loaded.containsAll(meta.positionsOf(id)));
+        }
+        assertArrayEquals(built.toBytes(), loaded.toBytes());
+    }
+
+    @Test
+    void positionsAreStableAndInRange() {
+        RedisBloomFilter.Meta meta = new RedisBloomFilter.Meta("v1", BITS, 7, 100);
+        for (long id = 1; id <= 1000; id++) {
+            long[] positions = meta.positionsOf(id);
+            assertEquals(7, positions.length);
+            assertArrayEquals(positions, meta.positionsOf(String.valueOf(id)));
+            for (long position : positions) {
+                assertTrue(position >= 0 && position < BITS);
+            }
+        }
+    }
+
+    /**
+     * 按Redis SETBIT的语义构造bitmap
+     */
+    private static byte[] setbit(long[] positions) {
+        byte[] bytes = new byte[(int) ((BITS + 7) / 8)];
+        for (long position : positions) {
+            bytes[(int) (position >> 3)] |= (byte) (0x80 >> (position & 7));
+        }
+        return bytes;
+    }
+}
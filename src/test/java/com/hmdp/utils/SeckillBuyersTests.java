@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 下单用户分片bitmap的分片号和偏移量，不需要Redis和数据库
+ */
+class SeckillBuyersTests {
+
+    private static final String ORDER_KEY = "seckill:order:10";
+
+    @Test
+    void shardBoundaries() {
+        int bits = 10;
+        assertEquals(ORDER_KEY + ":0", SeckillBuyers.shardKey(ORDER_KEY, 0, bits));
+        assertEquals(0, SeckillBuyers.offsetOf(0, bits));
+        assertEquals(ORDER_KEY + ":0", SeckillBuyers.shardKey(ORDER_KEY, 1023, bits));
+        assertEquals(1023, SeckillBuyers.offsetOf(1023, bits));
+        assertEquals(ORDER_KEY + ":1", SeckillBuyers.shardKey(ORDER_KEY, 1024, bits));
+        assertEquals(0, SeckillBuyers.offsetOf(1024, bits));
+        assertEquals(ORDER_KEY + ":3", SeckillBuyers.shardKey(ORDER_KEY, 3 * 1024 + 5, bits));
+        assertEquals(5, SeckillBuyers.offsetOf(3 * 1024 + 5, bits));
+    }
+
+    @Test
+    void maxShardBits() {
+        // 23位时每个分片 2^23 位，即1MB
+        int bits = 23;
+        long size = 1L << bits;
+        assertEquals(ORDER_KEY + ":0", SeckillBuyers.shardKey(ORDER_KEY, size - 1, bits));
+        assertEquals(size - 1, SeckillBuyers.offsetOf(size - 1, bits));
+        assertEquals(ORDER_KEY + ":1", SeckillBuyers.shardKey(ORDER_KEY, size, bits));
+        assertEquals(0, SeckillBuyers.offsetOf(size, bits));
+    }
+
+    @Test
+    void differentUsersNeverShareABit() {
+        int bits = 4;
+        for (long a = 0; a < 200; a++) {
+            for (long b = a + 1; b < 200; b++) {
+                boolean sameShard = SeckillBuyers.shardKey(ORDER_KEY, a, bits).equals(SeckillBuyers.shardKey(ORDER_KEY, b, bits));
+                if (sameShard) {
+                    assertNotEquals(SeckillBuyers.offsetOf(a, bits), SeckillBuyers.offsetOf(b, bits));
+                }
+            }
+        }
+    }
+
+    @Test
+    void matchesLuaMapping() {
+        long[] userIds = {1, 1010, 8388607, 8388608, 123456789, 1L << 40, (1L << 53) - 1};
+        for (int bits = 1; bits <= 23; bits++) {
+            for (long userId : userIds) {
+                // 与lua脚本一致：size = 2^shardBits，shard = math.floor(uid / size)，offset = uid - shard * size
+                double size = Math.pow(2, bits);
+                double shard = Math.floor(userId / size);
+                long offset = (long) (userId - shard * size);
+                assertEquals(ORDER_KEY + ":" + (long) shard, SeckillBuyers.shardKey(ORDER_KEY, userId, bits));
+                assertEquals(offset, SeckillBuyers.offsetOf(userId, bits));
+                assertTrue(offset >= 0 && offset < (1L << bits));
+            }
+        }
+    }
+
+    @Test
+    void shardsKey() {
+        assertEquals("seckill:order:10:shards", SeckillBuyers.shardsKey(ORDER_KEY));
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 雪花算法id的位布局，不需要Redis和数据库
+ */
+class SnowflakeIdWorkerTests {
+
+    private static final LocalDateTime TIME = LocalDateTime.of(2024, 5, 20, 13, 14, 15, 678_000_000);
+
+    @Test
+    void fieldsDecode() {
+        long id = SnowflakeIdWorker.compose(millisOf(TIME), 1023, 4095);
+
+        assertEquals(TIME.toEpochSecond(ZoneOffset.UTC) - 1672531200L, id >>> 32);
+        assertEquals(678, (id >>> 22) & 0x3FF);
+        assertEquals(1023, (id >>> 12) & 0x3FF);
+        assertEquals(4095, id & 0xFFF);
+        assertTrue(id > 0);
+    }
+
+    @Test
+    void highBitsMatchRedisIdWorker() {
+        RedisIdWorker redisIdWorker = new RedisIdWorker(null, null, null);
+        long id = SnowflakeIdWorker.compose(millisOf(TIME), 7, 0);
+
+        assertEquals(redisIdWorker.highBits(TIME), id & 0xFFFFFFFF00000000L);
+    }
+
+    @Test
+    void monotonicAcrossSequenceAndMillis() {
+        long now = millisOf(TIME);
+        long previous = SnowflakeIdWorker.compose(now, 1023, 0);
+        for (long sequence = 1; sequence <= 4095; sequence++) {
+            long id = SnowflakeIdWorker.compose(now, 1023, sequence);
+            assertTrue(id > previous);
+            previous = id;
+        }
+        // 下一毫秒序列号从0开始，workerId更小的id也更大
+        assertTrue(SnowflakeIdWorker.compose(now + 1, 0, 0) > previous);
+        // 跨秒时毫秒字段归零，时间戳进位
+        assertTrue(SnowflakeIdWorker.compose(millisOf(TIME.withNano(0).plusSeconds(1)), 0, 0)
+                > SnowflakeIdWorker.compose(millisOf(TIME.withNano(999_000_000)), 1023, 4095));
+    }
+
+    /**
+     * 与nextId相同，使用当前时区的毫秒数
+     */
+    private static long millisOf(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+}